@@ -0,0 +1,155 @@
+package lhg.canvasscrollview;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * holds the list of an adapter and swaps it for a new one with a diff computed on a background thread,
+ * the diff is dispatched as range inserts/removes/changes and moves in one batch,
+ * so blocks that did not change stay in the window with their measured layouts.
+ *
+ * <pre>
+ * getItemCount() -> differ.getCurrentList().size()
+ * getItem(parent, position) -> differ.getCurrentList().get(position)
+ * </pre>
+ */
+public class AsyncBlockListDiffer<T> {
+
+    public interface ItemCallback<T> {
+        /**
+         * a stable id, items with the same id are the same item (maybe with changed content)
+         */
+        long getItemId(T item);
+
+        /**
+         * called only for items with the same id, false dispatches a change for it
+         */
+        boolean areContentsTheSame(T oldItem, T newItem);
+    }
+
+    public interface ListListener<T> {
+        void onCurrentListChanged(List<T> previousList, List<T> currentList);
+    }
+
+    private static Executor sDiffExecutor;
+
+    private final CanvasScrollView.Adapter<?> adapter;
+    private final ItemCallback<T> callback;
+    private final Executor backgroundExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private ListListener<T> listListener;
+    private List<T> currentList = Collections.emptyList();
+    // newer submits make the running diffs stale
+    private int maxScheduledGeneration = 0;
+
+    public AsyncBlockListDiffer(CanvasScrollView.Adapter<?> adapter, ItemCallback<T> callback) {
+        this(adapter, callback, getDefaultExecutor());
+    }
+
+    public AsyncBlockListDiffer(CanvasScrollView.Adapter<?> adapter, ItemCallback<T> callback, Executor backgroundExecutor) {
+        this.adapter = adapter;
+        this.callback = callback;
+        this.backgroundExecutor = backgroundExecutor;
+    }
+
+    private static synchronized Executor getDefaultExecutor() {
+        if (sDiffExecutor == null) {
+            sDiffExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, "CanvasScrollView-diff");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sDiffExecutor;
+    }
+
+    public void setListListener(ListListener<T> listListener) {
+        this.listListener = listListener;
+    }
+
+    /**
+     * the list the adapter must read from, do not modify it, submit a new list instead
+     */
+    public List<T> getCurrentList() {
+        return currentList;
+    }
+
+    public void submitList(List<T> newList) {
+        submitList(newList, null);
+    }
+
+    /**
+     * must be called on the main thread, newList must not be modified afterwards
+     * @param commitCallback run after the new list is dispatched, or dropped with it by a newer submit
+     */
+    public void submitList(final List<T> newList, final Runnable commitCallback) {
+        final int runGeneration = ++maxScheduledGeneration;
+        if (newList == currentList) {
+            if (commitCallback != null) {
+                commitCallback.run();
+            }
+            return;
+        }
+        final List<T> previousList = currentList;
+        if (newList == null || newList.isEmpty() || previousList.isEmpty()) {
+            //nothing to diff
+            currentList = newList == null ? Collections.<T>emptyList() : newList;
+            if (!previousList.isEmpty()) {
+                adapter.notifyItemRangeRemoved(0, previousList.size());
+            }
+            if (!currentList.isEmpty()) {
+                adapter.notifyItemRangeInserted(0, currentList.size());
+            }
+            onCurrentListChanged(previousList, commitCallback);
+            return;
+        }
+        final List<T> oldList = previousList;
+        backgroundExecutor.execute(() -> {
+            long[] oldIds = new long[oldList.size()];
+            for (int i = 0; i < oldIds.length; i++) {
+                oldIds[i] = callback.getItemId(oldList.get(i));
+            }
+            long[] newIds = new long[newList.size()];
+            for (int i = 0; i < newIds.length; i++) {
+                newIds[i] = callback.getItemId(newList.get(i));
+            }
+            final BlockListDiff diff = BlockListDiff.calculate(oldIds, newIds,
+                    (oldPosition, newPosition) -> callback.areContentsTheSame(oldList.get(oldPosition), newList.get(newPosition)));
+            mainHandler.post(() -> {
+                if (maxScheduledGeneration == runGeneration) {
+                    latchList(newList, diff, commitCallback);
+                }
+            });
+        });
+    }
+
+    private void latchList(List<T> newList, BlockListDiff diff, Runnable commitCallback) {
+        final List<T> previousList = currentList;
+        currentList = newList;
+        adapter.beginBatchedUpdates();
+        try {
+            diff.dispatchTo(adapter);
+        } finally {
+            adapter.endBatchedUpdates();
+        }
+        onCurrentListChanged(previousList, commitCallback);
+    }
+
+    private void onCurrentListChanged(List<T> previousList, Runnable commitCallback) {
+        if (listListener != null) {
+            listListener.onCurrentListChanged(previousList, currentList);
+        }
+        if (commitCallback != null) {
+            commitCallback.run();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package lhg.canvasscrollview;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+
+/**
+ * bitmaps released by blocks, kept for BitmapFactory.Options.inBitmap. only exact size and config
+ * matches are reused, which is what inBitmap needs before KITKAT and what BitmapRegionDecoder needs
+ * to not clip. bounded by maxBytes, the oldest bitmaps are dropped first. thread safe.
+ * the default pool is registered for onTrimMemory by the first CanvasScrollView attached, register
+ * a pool of your own with Context.registerComponentCallbacks.
+ */
+public class BitmapPool implements ComponentCallbacks2 {
+    private static BitmapPool sDefault;
+    private static boolean sDefaultRegistered = false;
+
+    private final long maxBytes;
+    private long bytes = 0;
+    private final ArrayList<Bitmap> bitmaps = new ArrayList<>();
+
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * a pool of a sixteenth of the heap shared by the blocks which are not given one
+     */
+    public static synchronized BitmapPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
+        }
+        return sDefault;
+    }
+
+    /**
+     * the default pool lives as long as the process, so it stays registered with the application
+     */
+    static synchronized void registerDefault(Context context) {
+        if (!sDefaultRegistered) {
+            sDefaultRegistered = true;
+            context.getApplicationContext().registerComponentCallbacks(getDefault());
+        }
+    }
+
+    /**
+     * @return a pooled bitmap of exactly this size and config, or null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        for (int i = bitmaps.size() - 1; i >= 0; i--) {
+            Bitmap b = bitmaps.get(i);
+            if (b.getWidth() == width && b.getHeight() == height && b.getConfig() == config) {
+                bitmaps.remove(i);
+                bytes -= sizeOf(b);
+                return b;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * the caller must not use bitmap afterwards
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || sizeOf(bitmap) > maxBytes / 2) {
+            return;
+        }
+        bitmaps.add(bitmap);
+        bytes += sizeOf(bitmap);
+        trimToSize(maxBytes);
+    }
+
+    public synchronized void trimToSize(long size) {
+        while (bytes > size && !bitmaps.isEmpty()) {
+            bytes -= sizeOf(bitmaps.remove(0));
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private static long sizeOf(Bitmap bitmap) {
+        return bitmap.getByteCount();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(maxBytes / 2);
+        }
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+}
@@ -0,0 +1,133 @@
+package lhg.canvasscrollview;
+
+import android.graphics.Canvas;
+import android.graphics.Picture;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * the recorded drawing of one block, a RenderNode on Q+, a Picture on M..P
+ * (hardware canvases can not draw pictures before M, no cache there).
+ * the recording covers the whole block, so scrolling only replays it at another translation.
+ */
+abstract class BlockDisplayList {
+    private int width = -1;
+    private int height = -1;
+    private boolean valid = false;
+
+    /**
+     * @return null if display lists are not supported on this device
+     */
+    static BlockDisplayList create() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return new RenderNodeDisplayList();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return new PictureDisplayList();
+        }
+        return null;
+    }
+
+    final boolean isValid(int width, int height) {
+        return valid && this.width == width && this.height == height;
+    }
+
+    final Canvas beginRecording(int width, int height) {
+        this.width = width;
+        this.height = height;
+        return onBeginRecording(width, height);
+    }
+
+    final void endRecording() {
+        onEndRecording();
+        valid = true;
+    }
+
+    final void invalidate() {
+        valid = false;
+    }
+
+    final void release() {
+        valid = false;
+        onRelease();
+    }
+
+    /**
+     * @return false if canvas can not draw this display list, draw the block directly then
+     */
+    abstract boolean canDraw(Canvas canvas);
+
+    abstract Canvas onBeginRecording(int width, int height);
+
+    abstract void onEndRecording();
+
+    abstract void draw(Canvas canvas);
+
+    abstract void onRelease();
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private static class RenderNodeDisplayList extends BlockDisplayList {
+        private final RenderNode node = new RenderNode("CanvasBlock");
+
+        @Override
+        boolean canDraw(Canvas canvas) {
+            return canvas instanceof RecordingCanvas && canvas.isHardwareAccelerated();
+        }
+
+        @Override
+        Canvas onBeginRecording(int width, int height) {
+            node.setPosition(0, 0, width, height);
+            return node.beginRecording(width, height);
+        }
+
+        @Override
+        void onEndRecording() {
+            node.endRecording();
+        }
+
+        @Override
+        void draw(Canvas canvas) {
+            ((RecordingCanvas) canvas).drawRenderNode(node);
+        }
+
+        @Override
+        void onRelease() {
+            node.discardDisplayList();
+        }
+    }
+
+    private static class PictureDisplayList extends BlockDisplayList {
+        private Picture picture = new Picture();
+
+        @Override
+        boolean canDraw(Canvas canvas) {
+            return canvas.isHardwareAccelerated();
+        }
+
+        @Override
+        Canvas onBeginRecording(int width, int height) {
+            if (picture == null) {
+                picture = new Picture();
+            }
+            return picture.beginRecording(width, height);
+        }
+
+        @Override
+        void onEndRecording() {
+            picture.endRecording();
+        }
+
+        @Override
+        void draw(Canvas canvas) {
+            canvas.drawPicture(picture);
+        }
+
+        @Override
+        void onRelease() {
+            picture = null;
+        }
+    }
+}
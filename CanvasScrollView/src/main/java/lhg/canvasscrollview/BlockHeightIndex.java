@@ -0,0 +1,258 @@
+package lhg.canvasscrollview;
+
+import java.util.Arrays;
+
+/**
+ * per-position height index for CanvasScrollView.
+ * remembers the measured height of every position once it has been measured, positions not yet
+ * measured use the average of the measured ones. prefix sums are kept in two fenwick trees
+ * (measured height sum and measured count), so the estimate can change without a rebuild and
+ * offsetOf / totalHeight cost O(log n).
+ */
+class BlockHeightIndex {
+    private static final int UNMEASURED = -1;
+
+    private int count = 0;
+    private int[] heights = new int[16];
+    // 1-based fenwick trees
+    private long[] sumTree = new long[17];
+    private int[] countTree = new int[17];
+    private long measuredSum = 0;
+    private int measuredCount = 0;
+    // set by a middle insert/remove, the trees are rebuilt on the next query
+    private boolean dirty = false;
+
+    public int size() {
+        return count;
+    }
+
+    public void reset(int count) {
+        this.count = 0;
+        measuredSum = 0;
+        measuredCount = 0;
+        ensureCapacity(count);
+        this.count = count;
+        Arrays.fill(heights, 0, count, UNMEASURED);
+        Arrays.fill(sumTree, 0, count + 1, 0);
+        Arrays.fill(countTree, 0, count + 1, 0);
+        dirty = false;
+    }
+
+    public boolean isMeasured(int position) {
+        return position >= 0 && position < count && heights[position] != UNMEASURED;
+    }
+
+    /**
+     * @return the measured height, or the estimate if position is not measured yet
+     */
+    public int heightAt(int position) {
+        int h = heights[position];
+        return h == UNMEASURED ? estimatedHeight() : h;
+    }
+
+    public int estimatedHeight() {
+        return measuredCount == 0 ? 0 : (int) (measuredSum / measuredCount);
+    }
+
+    public void set(int position, int height) {
+        if (position < 0 || position >= count) {
+            return;
+        }
+        height = Math.max(0, height);
+        int old = heights[position];
+        if (old == height) {
+            return;
+        }
+        heights[position] = height;
+        long dSum = height - (old == UNMEASURED ? 0 : old);
+        int dCount = old == UNMEASURED ? 1 : 0;
+        measuredSum += dSum;
+        measuredCount += dCount;
+        if (!dirty) {
+            update(position + 1, dSum, dCount);
+        }
+    }
+
+    /**
+     * like set for many positions at once, e.g. heights read from a LayoutCache: the trees are
+     * rebuilt once on the next query instead of updated for every position
+     */
+    public void load(int position, int height) {
+        if (position < 0 || position >= count) {
+            return;
+        }
+        height = Math.max(0, height);
+        int old = heights[position];
+        if (old == height) {
+            return;
+        }
+        heights[position] = height;
+        measuredSum += height - (old == UNMEASURED ? 0 : old);
+        measuredCount += old == UNMEASURED ? 1 : 0;
+        dirty = true;
+    }
+
+    public void invalidate(int positionStart, int itemCount) {
+        int end = Math.min(count, positionStart + itemCount);
+        for (int i = Math.max(0, positionStart); i < end; i++) {
+            int old = heights[i];
+            if (old == UNMEASURED) {
+                continue;
+            }
+            heights[i] = UNMEASURED;
+            measuredSum -= old;
+            measuredCount--;
+            if (!dirty) {
+                update(i + 1, -old, -1);
+            }
+        }
+    }
+
+    public void insert(int positionStart, int itemCount) {
+        if (itemCount <= 0) {
+            return;
+        }
+        positionStart = Math.max(0, Math.min(positionStart, count));
+        int oldCount = count;
+        ensureCapacity(count + itemCount);
+        System.arraycopy(heights, positionStart, heights, positionStart + itemCount, oldCount - positionStart);
+        Arrays.fill(heights, positionStart, positionStart + itemCount, UNMEASURED);
+        count += itemCount;
+        if (positionStart != oldCount) {
+            dirty = true;
+        } else if (!dirty) {
+            //append at the tail, only the new nodes need to be built
+            for (int i = oldCount + 1; i <= count; i++) {
+                int from = i - (i & -i);
+                sumTree[i] = prefixSum(i - 1) - prefixSum(from);
+                countTree[i] = prefixCount(i - 1) - prefixCount(from);
+            }
+        }
+    }
+
+    public void remove(int positionStart, int itemCount) {
+        positionStart = Math.max(0, positionStart);
+        int end = Math.min(count, positionStart + itemCount);
+        if (end <= positionStart) {
+            return;
+        }
+        for (int i = positionStart; i < end; i++) {
+            if (heights[i] != UNMEASURED) {
+                measuredSum -= heights[i];
+                measuredCount--;
+            }
+        }
+        System.arraycopy(heights, end, heights, positionStart, count - end);
+        count -= end - positionStart;
+        //removing the tail keeps the remaining nodes valid
+        if (positionStart != count) {
+            dirty = true;
+        }
+    }
+
+    public void move(int fromPosition, int toPosition) {
+        if (fromPosition == toPosition || fromPosition < 0 || fromPosition >= count
+                || toPosition < 0 || toPosition >= count) {
+            return;
+        }
+        int h = heights[fromPosition];
+        if (fromPosition < toPosition) {
+            System.arraycopy(heights, fromPosition + 1, heights, fromPosition, toPosition - fromPosition);
+        } else {
+            System.arraycopy(heights, toPosition, heights, toPosition + 1, fromPosition - toPosition);
+        }
+        heights[toPosition] = h;
+        //the sums do not change, only the order
+        dirty = true;
+    }
+
+    /**
+     * @return the top of position, the sum of the heights of [0, position)
+     */
+    public long offsetOf(int position) {
+        position = Math.max(0, Math.min(position, count));
+        ensureTree();
+        int measured = prefixCount(position);
+        return prefixSum(position) + (long) (position - measured) * estimatedHeight();
+    }
+
+    /**
+     * O(1), does not rebuild dirty trees: the scroll bars ask for it on every scroll
+     */
+    public long totalHeight() {
+        return measuredSum + (long) (count - measuredCount) * estimatedHeight();
+    }
+
+    /**
+     * @return the position whose range contains offset, clamped to [0, size-1]
+     */
+    public int positionAt(long offset) {
+        if (count == 0) {
+            return 0;
+        }
+        int lo = 0, hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsetOf(mid) <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (heights.length >= capacity) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, heights.length * 2);
+        heights = Arrays.copyOf(heights, newCapacity);
+        sumTree = Arrays.copyOf(sumTree, newCapacity + 1);
+        countTree = Arrays.copyOf(countTree, newCapacity + 1);
+    }
+
+    private void ensureTree() {
+        if (!dirty) {
+            return;
+        }
+        Arrays.fill(sumTree, 0, count + 1, 0);
+        Arrays.fill(countTree, 0, count + 1, 0);
+        for (int i = 1; i <= count; i++) {
+            int h = heights[i - 1];
+            if (h != UNMEASURED) {
+                sumTree[i] += h;
+                countTree[i]++;
+            }
+            int p = i + (i & -i);
+            if (p <= count) {
+                sumTree[p] += sumTree[i];
+                countTree[p] += countTree[i];
+            }
+        }
+        dirty = false;
+    }
+
+    private void update(int i, long dSum, int dCount) {
+        for (; i <= count; i += i & -i) {
+            sumTree[i] += dSum;
+            countTree[i] += dCount;
+        }
+    }
+
+    private long prefixSum(int i) {
+        long s = 0;
+        for (; i > 0; i -= i & -i) {
+            s += sumTree[i];
+        }
+        return s;
+    }
+
+    private int prefixCount(int i) {
+        int s = 0;
+        for (; i > 0; i -= i & -i) {
+            s += countTree[i];
+        }
+        return s;
+    }
+}
@@ -0,0 +1,348 @@
+package lhg.canvasscrollview;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * myers diff between two lists of item ids, in linear space (middle snake, like DiffUtil).
+ * the result is a script of update ops which, applied in order, turns the old list into the new one:
+ * removes (back to front), moves, inserts (front to back), then changes in the new positions.
+ */
+class BlockListDiff {
+    static final int OP_REMOVE = 0;
+    static final int OP_MOVE = 1;
+    static final int OP_INSERT = 2;
+    static final int OP_CHANGE = 3;
+
+    interface ContentComparator {
+        boolean areContentsTheSame(int oldPosition, int newPosition);
+    }
+
+    /**
+     * triples of (op, a, b): REMOVE/INSERT/CHANGE (position, count), MOVE (from, to)
+     */
+    private final int[] ops;
+    private final int opCount;
+
+    private BlockListDiff(int[] ops, int opCount) {
+        this.ops = ops;
+        this.opCount = opCount;
+    }
+
+    public int opCount() {
+        return opCount;
+    }
+
+    public int op(int i) {
+        return ops[i * 3];
+    }
+
+    public int argA(int i) {
+        return ops[i * 3 + 1];
+    }
+
+    public int argB(int i) {
+        return ops[i * 3 + 2];
+    }
+
+    public void dispatchTo(CanvasScrollView.Adapter<?> adapter) {
+        for (int i = 0; i < opCount; i++) {
+            int a = argA(i), b = argB(i);
+            switch (op(i)) {
+                case OP_REMOVE:
+                    adapter.notifyItemRangeRemoved(a, b);
+                    break;
+                case OP_MOVE:
+                    adapter.notifyItemMoved(a, b);
+                    break;
+                case OP_INSERT:
+                    adapter.notifyItemRangeInserted(a, b);
+                    break;
+                case OP_CHANGE:
+                    //a changed item is a new object, a range change would keep measuring the old block
+                    //of a non recyclable adapter, so replace it. recyclable blocks go through the pool
+                    adapter.notifyItemRangeRemoved(a, b);
+                    adapter.notifyItemRangeInserted(a, b);
+                    break;
+            }
+        }
+    }
+
+    static BlockListDiff calculate(long[] oldIds, long[] newIds, ContentComparator comparator) {
+        final int oldSize = oldIds.length;
+        final int newSize = newIds.length;
+        int[] oldToNew = new int[oldSize];
+        int[] newToOld = new int[newSize];
+        Arrays.fill(oldToNew, -1);
+        Arrays.fill(newToOld, -1);
+        // matched by the longest common subsequence
+        boolean[] inLcs = new boolean[oldSize];
+
+        // common prefix and suffix are the usual case, skip them before the real diff
+        int head = 0;
+        while (head < oldSize && head < newSize && oldIds[head] == newIds[head]) {
+            oldToNew[head] = head;
+            newToOld[head] = head;
+            inLcs[head] = true;
+            head++;
+        }
+        int tail = 0;
+        while (tail < oldSize - head && tail < newSize - head
+                && oldIds[oldSize - 1 - tail] == newIds[newSize - 1 - tail]) {
+            oldToNew[oldSize - 1 - tail] = newSize - 1 - tail;
+            newToOld[newSize - 1 - tail] = oldSize - 1 - tail;
+            inLcs[oldSize - 1 - tail] = true;
+            tail++;
+        }
+        for (int[] d : diagonals(oldIds, newIds, head, oldSize - tail, head, newSize - tail)) {
+            for (int i = 0; i < d[2]; i++) {
+                oldToNew[d[0] + i] = d[1] + i;
+                newToOld[d[1] + i] = d[0] + i;
+                inLcs[d[0] + i] = true;
+            }
+        }
+
+        // removed items which show up again are moves
+        HashMap<Long, List<Integer>> removedById = new HashMap<>();
+        for (int i = oldSize - 1; i >= 0; i--) {
+            if (oldToNew[i] == -1) {
+                List<Integer> l = removedById.get(oldIds[i]);
+                if (l == null) {
+                    l = new ArrayList<>(1);
+                    removedById.put(oldIds[i], l);
+                }
+                l.add(i);
+            }
+        }
+        if (!removedById.isEmpty()) {
+            for (int j = 0; j < newSize; j++) {
+                if (newToOld[j] != -1) {
+                    continue;
+                }
+                List<Integer> l = removedById.get(newIds[j]);
+                if (l != null && !l.isEmpty()) {
+                    int i = l.remove(l.size() - 1);
+                    oldToNew[i] = j;
+                    newToOld[j] = i;
+                }
+            }
+        }
+
+        IntList ops = new IntList();
+
+        // removes, back to front so the old positions stay valid
+        for (int i = oldSize - 1; i >= 0; ) {
+            if (oldToNew[i] != -1) {
+                i--;
+                continue;
+            }
+            int end = i;
+            while (i >= 0 && oldToNew[i] == -1) {
+                i--;
+            }
+            ops.add(OP_REMOVE, i + 1, end - i);
+        }
+
+        // moves, each moved item goes right after its predecessor in the new list.
+        // current holds the new positions of the kept items in their present order,
+        // indexInCurrent where each new position is, only the items between from and to shift
+        int[] current = new int[oldSize];
+        int[] indexInCurrent = new int[newSize];
+        int currentSize = 0;
+        for (int i = 0; i < oldSize; i++) {
+            if (oldToNew[i] != -1) {
+                indexInCurrent[oldToNew[i]] = currentSize;
+                current[currentSize++] = oldToNew[i];
+            }
+        }
+        int previous = -1; // new position of the last kept item before j
+        for (int j = 0; j < newSize; j++) {
+            int i = newToOld[j];
+            if (i == -1) {
+                continue;
+            }
+            if (!inLcs[i]) {
+                int from = indexInCurrent[j];
+                int to = previous == -1 ? 0 : indexInCurrent[previous] + 1;
+                if (from < to) {
+                    to--;
+                }
+                if (from != to) {
+                    if (from < to) {
+                        for (int k = from; k < to; k++) {
+                            current[k] = current[k + 1];
+                            indexInCurrent[current[k]] = k;
+                        }
+                    } else {
+                        for (int k = from; k > to; k--) {
+                            current[k] = current[k - 1];
+                            indexInCurrent[current[k]] = k;
+                        }
+                    }
+                    current[to] = j;
+                    indexInCurrent[j] = to;
+                    ops.add(OP_MOVE, from, to);
+                }
+            }
+            previous = j;
+        }
+
+        // inserts, front to back, every item before j is in place already
+        for (int j = 0; j < newSize; ) {
+            if (newToOld[j] != -1) {
+                j++;
+                continue;
+            }
+            int start = j;
+            while (j < newSize && newToOld[j] == -1) {
+                j++;
+            }
+            ops.add(OP_INSERT, start, j - start);
+        }
+
+        // changes, in the new positions
+        for (int j = 0; j < newSize; ) {
+            if (newToOld[j] == -1 || comparator.areContentsTheSame(newToOld[j], j)) {
+                j++;
+                continue;
+            }
+            int start = j;
+            while (j < newSize && newToOld[j] != -1 && !comparator.areContentsTheSame(newToOld[j], j)) {
+                j++;
+            }
+            ops.add(OP_CHANGE, start, j - start);
+        }
+        return new BlockListDiff(ops.data, ops.size / 3);
+    }
+
+    /**
+     * @return matching diagonals (oldStart, newStart, size) of the given ranges
+     */
+    private static List<int[]> diagonals(long[] oldIds, long[] newIds, int oldStart, int oldEnd, int newStart, int newEnd) {
+        List<int[]> diagonals = new ArrayList<>();
+        if (oldEnd <= oldStart || newEnd <= newStart) {
+            return diagonals;
+        }
+        int max = (oldEnd - oldStart + newEnd - newStart + 1) / 2;
+        int[] forward = new int[max * 2 + 1];
+        int[] backward = new int[max * 2 + 1];
+        List<int[]> stack = new ArrayList<>();
+        stack.add(new int[]{oldStart, oldEnd, newStart, newEnd});
+        int[] snake = new int[5];
+        while (!stack.isEmpty()) {
+            int[] range = stack.remove(stack.size() - 1);
+            if (!midPoint(oldIds, newIds, range, forward, backward, max, snake)) {
+                continue;
+            }
+            int diagonalSize = Math.min(snake[2] - snake[0], snake[3] - snake[1]);
+            if (diagonalSize > 0) {
+                int dx = snake[2] - snake[0], dy = snake[3] - snake[1];
+                if (dx == dy) {
+                    diagonals.add(new int[]{snake[0], snake[1], dx});
+                } else if (snake[4] == 1) {
+                    diagonals.add(new int[]{snake[0], snake[1], diagonalSize});
+                } else if (dy > dx) {
+                    diagonals.add(new int[]{snake[0], snake[1] + 1, diagonalSize});
+                } else {
+                    diagonals.add(new int[]{snake[0] + 1, snake[1], diagonalSize});
+                }
+            }
+            stack.add(new int[]{range[0], snake[0], range[2], snake[1]});
+            stack.add(new int[]{snake[2], range[1], snake[3], range[3]});
+        }
+        Collections.sort(diagonals, (a, b) -> a[0] - b[0]);
+        return diagonals;
+    }
+
+    /**
+     * finds the middle snake of range, (startX, startY, endX, endY, reverse) into snake
+     */
+    private static boolean midPoint(long[] oldIds, long[] newIds, int[] range, int[] forward, int[] backward, int center, int[] snake) {
+        int oldSize = range[1] - range[0];
+        int newSize = range[3] - range[2];
+        if (oldSize < 1 || newSize < 1) {
+            return false;
+        }
+        int max = (oldSize + newSize + 1) / 2;
+        forward[center + 1] = range[0];
+        backward[center + 1] = range[1];
+        int delta = oldSize - newSize;
+        boolean oddDelta = Math.abs(delta) % 2 == 1;
+        for (int d = 0; d < max; d++) {
+            // forward
+            for (int k = -d; k <= d; k += 2) {
+                int startX, x;
+                if (k == -d || (k != d && forward[center + k + 1] > forward[center + k - 1])) {
+                    x = startX = forward[center + k + 1];
+                } else {
+                    startX = forward[center + k - 1];
+                    x = startX + 1;
+                }
+                int y = range[2] + (x - range[0]) - k;
+                int startY = (d == 0 || x != startX) ? y : y - 1;
+                while (x < range[1] && y < range[3] && oldIds[x] == newIds[y]) {
+                    x++;
+                    y++;
+                }
+                forward[center + k] = x;
+                if (oddDelta) {
+                    int backwardK = delta - k;
+                    if (backwardK >= -d + 1 && backwardK <= d - 1 && backward[center + backwardK] <= x) {
+                        snake[0] = startX;
+                        snake[1] = startY;
+                        snake[2] = x;
+                        snake[3] = y;
+                        snake[4] = 0;
+                        return true;
+                    }
+                }
+            }
+            // backward
+            for (int k = -d; k <= d; k += 2) {
+                int startX, x;
+                if (k == -d || (k != d && backward[center + k + 1] < backward[center + k - 1])) {
+                    x = startX = backward[center + k + 1];
+                } else {
+                    startX = backward[center + k - 1];
+                    x = startX - 1;
+                }
+                int y = range[3] - ((range[1] - x) - k);
+                int startY = (d == 0 || x != startX) ? y : y + 1;
+                while (x > range[0] && y > range[2] && oldIds[x - 1] == newIds[y - 1]) {
+                    x--;
+                    y--;
+                }
+                backward[center + k] = x;
+                if (!oddDelta) {
+                    int forwardK = delta - k;
+                    if (forwardK >= -d && forwardK <= d && forward[center + forwardK] >= x) {
+                        snake[0] = x;
+                        snake[1] = y;
+                        snake[2] = startX;
+                        snake[3] = startY;
+                        snake[4] = 1;
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class IntList {
+        int[] data = new int[48];
+        int size = 0;
+
+        void add(int op, int a, int b) {
+            if (size + 3 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = op;
+            data[size++] = a;
+            data[size++] = b;
+        }
+    }
+}
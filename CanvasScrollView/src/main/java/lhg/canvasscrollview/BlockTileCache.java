@@ -0,0 +1,300 @@
+package lhg.canvasscrollview;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * software cache of block drawings, for devices or canvases without display lists.
+ * a block is rendered into bitmap tiles of at most tileHeight pixels, so a very tall block only
+ * renders the tiles in the window. tiles are evicted in LRU order when the bitmaps (in use and
+ * pooled for reuse) exceed maxBytes. CanvasScrollView registers it for onTrimMemory while attached.
+ */
+public class BlockTileCache implements ComponentCallbacks2 {
+    public static final int DEFAULT_TILE_HEIGHT = 512;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final long maxBytes;
+    private final int tileHeight;
+    // bytes of all bitmaps, the ones in tiles and the pooled ones
+    private long usedBytes = 0;
+    private final LinkedHashMap<Tile, Tile> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private final ArrayList<Bitmap> pool = new ArrayList<>();
+    private final Canvas tileCanvas = new Canvas();
+    // tiles drawn in the current frame are not reused, a hardware canvas reads them after onDraw
+    private int frame = 0;
+
+    /**
+     * an eighth of the heap and tiles of {@link #DEFAULT_TILE_HEIGHT}
+     */
+    public BlockTileCache() {
+        this(Runtime.getRuntime().maxMemory() / 8, DEFAULT_TILE_HEIGHT);
+    }
+
+    public BlockTileCache(long maxBytes, int tileHeight) {
+        this.maxBytes = maxBytes;
+        this.tileHeight = Math.max(1, tileHeight);
+    }
+
+    static final class Tile {
+        BlockTiles owner;
+        int index;
+        Bitmap bitmap;
+        int frame;
+    }
+
+    /**
+     * the tiles of one block
+     */
+    static final class BlockTiles {
+        final BlockTileCache cache;
+        int width;
+        int height;
+        Tile[] tiles;
+
+        BlockTiles(BlockTileCache cache) {
+            this.cache = cache;
+        }
+
+        void invalidate() {
+            cache.releaseTiles(this);
+        }
+
+        void invalidate(int top, int bottom) {
+            cache.releaseTiles(this, top, bottom);
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    void beginFrame() {
+        frame++;
+    }
+
+    BlockTiles newBlockTiles() {
+        return new BlockTiles(this);
+    }
+
+    /**
+     * draws the tiles of block covering left top right bottom, rendering the missing ones
+     * @return false if the block can not be cached, draw it directly
+     */
+    boolean draw(CanvasScrollView parent, CanvasScrollView.CanvasBlock block, BlockTiles bt, Canvas canvas, int left, int top, int right, int bottom) {
+        int width = Math.max(block.getWidth(), parent.getWidth());
+        int height = block.getHeight();
+        if (width <= 0 || height <= 0 || (long) width * Math.min(height, tileHeight) * BYTES_PER_PIXEL > maxBytes / 4) {
+            return false;
+        }
+        if (bt.width != width || bt.height != height || bt.tiles == null) {
+            releaseTiles(bt);
+            bt.width = width;
+            bt.height = height;
+            bt.tiles = new Tile[(height + tileHeight - 1) / tileHeight];
+        }
+        int first = Math.max(0, top / tileHeight);
+        int last = Math.min(bt.tiles.length - 1, (bottom - 1) / tileHeight);
+        for (int i = first; i <= last; i++) {
+            Tile tile = bt.tiles[i];
+            if (tile == null) {
+                tile = renderTile(parent, block, bt, i);
+            } else {
+                lru.get(tile);
+            }
+            int tileTop = i * tileHeight;
+            if (tile == null) {
+                //no memory for the tile, draw it directly
+                int save = canvas.save();
+                canvas.clipRect(left, Math.max(top, tileTop), right, Math.min(bottom, tileTop + tileHeight));
+                block.onDraw(parent, canvas, left, Math.max(top, tileTop), right, Math.min(bottom, tileTop + tileHeight));
+                canvas.restoreToCount(save);
+                continue;
+            }
+            tile.frame = frame;
+            canvas.drawBitmap(tile.bitmap, 0, tileTop, null);
+        }
+        return true;
+    }
+
+    private Tile renderTile(CanvasScrollView parent, CanvasScrollView.CanvasBlock block, BlockTiles bt, int index) {
+        int tileTop = index * tileHeight;
+        int h = Math.min(tileHeight, bt.height - tileTop);
+        Bitmap bitmap = obtainBitmap(bt.width, h);
+        if (bitmap == null) {
+            return null;
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        tileCanvas.setBitmap(bitmap);
+        int save = tileCanvas.save();
+        tileCanvas.translate(0, -tileTop);
+        block.onDraw(parent, tileCanvas, 0, tileTop, bt.width, tileTop + h);
+        tileCanvas.restoreToCount(save);
+        tileCanvas.setBitmap(null);
+
+        Tile tile = new Tile();
+        tile.owner = bt;
+        tile.index = index;
+        tile.bitmap = bitmap;
+        bt.tiles[index] = tile;
+        lru.put(tile, tile);
+        return tile;
+    }
+
+    private Bitmap obtainBitmap(int width, int height) {
+        for (int i = pool.size() - 1; i >= 0; i--) {
+            Bitmap b = pool.get(i);
+            if (b.getWidth() == width && b.getHeight() == height) {
+                return pool.remove(i);
+            }
+        }
+        long bytes = (long) width * height * BYTES_PER_PIXEL;
+        while (usedBytes + bytes > maxBytes) {
+            if (!pool.isEmpty()) {
+                freeBitmap(pool.remove(pool.size() - 1));
+                continue;
+            }
+            Tile eldest = eldestReusableTile();
+            if (eldest == null) {
+                //every tile is on screen, go over the budget for this frame
+                break;
+            }
+            removeTile(eldest);
+            if (eldest.bitmap.getWidth() == width && eldest.bitmap.getHeight() == height) {
+                return eldest.bitmap;
+            }
+            freeBitmap(eldest.bitmap);
+        }
+        try {
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            usedBytes += bytes;
+            return bitmap;
+        } catch (OutOfMemoryError e) {
+            trimToSize(0);
+            return null;
+        }
+    }
+
+    private Tile eldestReusableTile() {
+        if (lru.isEmpty()) {
+            return null;
+        }
+        Tile eldest = lru.keySet().iterator().next();
+        return eldest.frame == frame ? null : eldest;
+    }
+
+    private void removeTile(Tile tile) {
+        lru.remove(tile);
+        if (tile.owner.tiles != null && tile.owner.tiles[tile.index] == tile) {
+            tile.owner.tiles[tile.index] = null;
+        }
+    }
+
+    private void freeBitmap(Bitmap bitmap) {
+        //not recycled, the view's last display list may still draw it
+        usedBytes -= (long) bitmap.getWidth() * bitmap.getHeight() * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * the tiles of bt go back to the pool, the block renders again on the next draw
+     */
+    void releaseTiles(BlockTiles bt) {
+        if (bt.tiles == null) {
+            return;
+        }
+        for (Tile tile : bt.tiles) {
+            if (tile != null) {
+                lru.remove(tile);
+                pool.add(tile.bitmap);
+            }
+        }
+        bt.tiles = null;
+        trimPool();
+    }
+
+    /**
+     * only the tiles of bt between top and bottom go back to the pool
+     */
+    void releaseTiles(BlockTiles bt, int top, int bottom) {
+        if (bt.tiles == null) {
+            return;
+        }
+        int first = Math.max(0, top / tileHeight);
+        int last = Math.min(bt.tiles.length - 1, (bottom - 1) / tileHeight);
+        for (int i = first; i <= last; i++) {
+            Tile tile = bt.tiles[i];
+            if (tile != null) {
+                lru.remove(tile);
+                pool.add(tile.bitmap);
+                bt.tiles[i] = null;
+            }
+        }
+        trimPool();
+    }
+
+    private void trimPool() {
+        while (usedBytes > maxBytes && !pool.isEmpty()) {
+            freeBitmap(pool.remove(pool.size() - 1));
+        }
+    }
+
+    /**
+     * frees pooled bitmaps, then the least recently drawn tiles, until at most bytes are used
+     */
+    public void trimToSize(long bytes) {
+        while (usedBytes > bytes && !pool.isEmpty()) {
+            freeBitmap(pool.remove(pool.size() - 1));
+        }
+        Iterator<Tile> it = lru.keySet().iterator();
+        while (usedBytes > bytes && it.hasNext()) {
+            Tile tile = it.next();
+            if (tile.frame == frame) {
+                break;
+            }
+            it.remove();
+            if (tile.owner.tiles != null && tile.owner.tiles[tile.index] == tile) {
+                tile.owner.tiles[tile.index] = null;
+            }
+            freeBitmap(tile.bitmap);
+        }
+    }
+
+    public void clear() {
+        //the next frame draws the blocks directly or renders them again
+        frame++;
+        trimToSize(0);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(maxBytes / 2);
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            //only the pool
+            while (!pool.isEmpty()) {
+                freeBitmap(pool.remove(pool.size() - 1));
+            }
+        }
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+}
@@ -4,9 +4,13 @@ import android.content.Context;
 import android.database.Observable;
 import android.graphics.Canvas;
 import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.TypedValue;
+import android.view.Display;
 import android.view.MotionEvent;
 import android.view.SoundEffectConstants;
 import android.view.VelocityTracker;
@@ -26,6 +30,8 @@ import androidx.core.widget.EdgeEffectCompat;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -66,6 +72,29 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
 
     private CanvasBlock draggedBlock = null;
     private final ScrollViewDataObserver mObserver = new ScrollViewDataObserver();
+    private RecycledBlockPool mRecycledBlockPool = new RecycledBlockPool();
+    private MeasureScheduler mMeasureScheduler;
+    private int mPreMeasureCount = DEFAULT_PRE_MEASURE_COUNT;
+    private static final int DEFAULT_PRE_MEASURE_COUNT = 2;
+    private static final long PREFETCH_LOOKAHEAD_MS = 100;
+    private boolean mItemPrefetchEnabled = true;
+    private int mMaxPrefetchDistance = -1;
+    private long mFrameIntervalNs = TimeUnit.SECONDS.toNanos(1) / 60;
+    // positions prefetched for the current scroll direction, kept when trimming
+    private int mPrefetchFrom = Integer.MAX_VALUE;
+    private int mPrefetchTo = -1;
+    private boolean mBlockDisplayListCacheEnabled = false;
+    private BlockTileCache mBlockTileCache;
+    // null unless a MetricsListener is set, the phases are only timed then
+    private FrameMetrics mFrameMetrics;
+    private MetricsListener mMetricsListener;
+    private LayoutCache mLayoutCache;
+    // restored by onRestoreInstanceState, applied by the first layout with items and a width
+    private SavedState mPendingAnchor;
+    // how far from its saved position the anchor item is looked up by its stable id
+    static final int ANCHOR_SEARCH_DISTANCE = 1000;
+    // taller blocks are drawn directly, recording them would cost more than it saves
+    static final int MAX_DISPLAY_LIST_SCREENS = 2;
 
     public CanvasScrollView(Context context) {
         this(context, null);
@@ -186,15 +215,34 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
         if (mLayouter.isInValidLayouting) {
             return;
         }
-        if (!mLayouter.isInvalid()) {
+        if (!mLayouter.isInvalid() || mObserver.isBatching()) {
             return;
         }
         mLayouter.isInValidLayouting = true;
-        for (InvalidLayoutHandler h : mLayouter.invalidHandlers) {
-            h.layout(this, mLayouter, mAdapter);
+        FrameMetrics.beginSection(FrameMetrics.PHASE_REPLAY);
+        long start = mFrameMetrics != null ? System.nanoTime() : 0;
+        try {
+            for (InvalidLayoutHandler h : mLayouter.invalidHandlers) {
+                h.layout(this, mLayouter, mAdapter);
+            }
+            mLayouter.invalidHandlers.clear();
+            mLayouter.syncHeights(this, mAdapter);
+        } finally {
+            if (mFrameMetrics != null) {
+                mFrameMetrics.addPhase(FrameMetrics.PHASE_REPLAY, System.nanoTime() - start);
+            }
+            FrameMetrics.endSection();
         }
-        mLayouter.invalidHandlers.clear();
         mLayouter.isInValidLayouting = false;
+        schedulePreMeasure();
+    }
+
+    /**
+     * replays the queued adapter notifications now instead of at the next layout or draw,
+     * e.g. to time them
+     */
+    void applyPendingUpdates() {
+        ensureLayouterValid();
     }
 
     @Override
@@ -279,11 +327,13 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
             draggedBlock = null;
         }
 
-        MotionEvent vtev = MotionEvent.obtain(ev);
-        vtev.offsetLocation(0, mNestedYOffset);
+        //the velocity tracker gets ev moved by the nested offset of this event, without copying it
+        final int velocityOffsetY = mNestedYOffset;
 
         switch (actionMasked) {
             case MotionEvent.ACTION_DOWN: {
+                //the user scrolls from here, not from a restored position still waiting for its item
+                mPendingAnchor = null;
                 if (getChildCount() == 0) {
                     draggedBlock = null;
                     setScrollState(SCROLL_STATE_IDLE);
@@ -306,6 +356,7 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
                 if (!mScroller.isFinished()) {
                     abortAnimatedScroll();
                 }
+                smoothScrollRunnable.stop();
 
                 // Remember where the motion event started
                 mLastMotionY = (int) ev.getY();
@@ -478,9 +529,10 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
         }
 
         if (mVelocityTracker != null) {
-            mVelocityTracker.addMovement(vtev);
+            ev.offsetLocation(0, velocityOffsetY);
+            mVelocityTracker.addMovement(ev);
+            ev.offsetLocation(0, -velocityOffsetY);
         }
-        vtev.recycle();
 
         return true;
     }
@@ -505,12 +557,12 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
     }
 
     private CanvasBlock findBlock(int x, int y) {
-        for (CanvasBlock view : mLayouter.blocks) {
-            if (view.getTop() < y && view.getBottom() > y) {
-                return view;
-            }
+        int i = mLayouter.firstBlockIndexBelow(y, false);
+        if (i < 0) {
+            return null;
         }
-        return null;
+        CanvasBlock view = mLayouter.blockAt(i);
+        return view.getTop() < y ? view : null;
     }
 
     private void onSecondaryPointerUp(MotionEvent ev) {
@@ -602,7 +654,7 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
             CanvasBlock view = mLayouter.blockAt(i);
             view.top -= dyConsumed;
             if (view.top >= getHeight() || view.getBottom() <= 0) {
-                mAdapter.onBlockDetachedFromView(this, mLayouter.blocks.remove(i));
+                detachBlock(mAdapter, mLayouter.blocks.remove(i));
             } else {
                 mLayouter.setFirstBlockPosition(oldFirstPosition + i);
             }
@@ -612,6 +664,10 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
         if (!awakenScrollBars()) {
             invalidate();
         }
+        schedulePreMeasure();
+        if (mScrollState != SCROLL_STATE_IDLE) {
+            postPrefetch(dyConsumed);
+        }
         return dyConsumed;
     }
 
@@ -640,10 +696,7 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
             return parentSpace;
         }
 
-        int scrollRange = mLayouter.lastBlock().getBottom() - mLayouter.firstBlock().getTop();
-        int sizePerRow = scrollRange / mLayouter.blockCount();
-        scrollRange = sizePerRow * mAdapter.getItemCount();
-        return scrollRange;
+        return (int) Math.min(Integer.MAX_VALUE, mLayouter.heights.totalHeight());
     }
 
 
@@ -655,10 +708,8 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
             return 0;
         }
 
-        int scrollRange = mLayouter.lastBlock().getBottom() - mLayouter.firstBlock().getTop();
-        int sizePerRow = scrollRange / mLayouter.blockCount();
-        scrollRange = sizePerRow * mLayouter.getFirstBlockPosition() - mLayouter.firstBlock().getTop();
-        return scrollRange;
+        long offset = mLayouter.heights.offsetOf(mLayouter.getFirstBlockPosition()) - mLayouter.firstBlock().getTop();
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, offset));
     }
     
     
@@ -681,6 +732,7 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
      *                  which means we want to scroll towards the top.
      */
     public boolean fling(int velocityY) {
+        smoothScrollRunnable.stop();
         return flingRunnable.start(velocityY);
     }
 
@@ -703,11 +755,75 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
     /**
      * {@inheritDoc}
      *
-     * <p>This version also clamps the scrolling to the bounds of our child.
+     * <p>y is the same offset as computeVerticalScrollOffset, it is mapped to a position
+     * by the height index, so the blocks in between are not created.
      */
     @Override
     public void scrollTo(int x, int y) {
+        ensureLayouterValid();
+        if (mAdapter == null || mAdapter.getItemCount() == 0) {
+            return;
+        }
+        int position = mLayouter.heights.positionAt(y);
+        scrollToPosition(position, (int) (mLayouter.heights.offsetOf(position) - y));
+    }
+
+    public void scrollToPosition(int position) {
+        scrollToPosition(position, 0);
+    }
+
+    /**
+     * drop the current window and fill it again from position, nothing between the old
+     * window and position is created or measured
+     *
+     * @param offset the distance between the top of the block and the top of this view
+     */
+    public void scrollToPosition(int position, int offset) {
+        stopScroll();
+        mPendingAnchor = null;
+        ensureLayouterValid();
+        if (mAdapter == null || mAdapter.getItemCount() == 0) {
+            return;
+        }
+        position = Math.max(0, Math.min(position, mAdapter.getItemCount() - 1));
+        mLayouter.fillWindowFrom(this, mAdapter, getWidth(), position, offset, getHeight());
+        adjustScrollY();
+        schedulePreMeasure();
+        dispatchOnScrolled(0, 0);
+        if (!awakenScrollBars()) {
+            invalidate();
+        }
+    }
+
+    /**
+     * animate to position by the estimated distance, if it is farther than
+     * {@link #SMOOTH_SCROLL_MAX_SCREENS} screens jump next to it first
+     */
+    public void smoothScrollToPosition(int position) {
+        stopScroll();
+        ensureLayouterValid();
+        if (mAdapter == null || getChildCount() == 0) {
+            return;
+        }
+        position = Math.max(0, Math.min(position, mAdapter.getItemCount() - 1));
+        long dy = estimateDistanceTo(position);
+        long maxDistance = (long) Math.max(1, getHeight()) * SMOOTH_SCROLL_MAX_SCREENS;
+        if (Math.abs(dy) > maxDistance) {
+            long target = mLayouter.heights.offsetOf(position);
+            long jumpTo = dy > 0 ? target - maxDistance : target + maxDistance;
+            int jumpPosition = mLayouter.heights.positionAt(jumpTo);
+            scrollToPosition(jumpPosition, (int) (mLayouter.heights.offsetOf(jumpPosition) - jumpTo));
+            dy = estimateDistanceTo(position);
+        }
+        if (dy == 0) {
+            return;
+        }
+        smoothScrollRunnable.start(position, (int) dy);
+    }
 
+    private long estimateDistanceTo(int position) {
+        long current = mLayouter.heights.offsetOf(mLayouter.getFirstBlockPosition()) - mLayouter.firstBlock().getTop();
+        return mLayouter.heights.offsetOf(position) - current;
     }
 
     private void ensureGlows() {
@@ -731,10 +847,29 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        FrameMetrics metrics = mFrameMetrics;
+        long frameStart = metrics != null ? System.nanoTime() : 0;
+        try {
+            drawBlocks(canvas, metrics);
+        } finally {
+            if (metrics != null && metrics == mFrameMetrics) {
+                metrics.endFrame(System.nanoTime() - frameStart);
+                if (mMetricsListener != null) {
+                    mMetricsListener.onFrame(this, metrics);
+                }
+                metrics.resetFrame();
+            }
+        }
+    }
+
+    private void drawBlocks(Canvas canvas, FrameMetrics metrics) {
         ensureLayouterValid();
         if (mLayouter.blockCount() == 0 || mAdapter == null) {
             return;
         }
+        if (mBlockTileCache != null) {
+            mBlockTileCache.beginFrame();
+        }
         adjustScrollY();
         int left = 0;
         int top = 0;
@@ -742,7 +877,8 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
         int transX = 0;
         int transY = 0;
         canvas.save();
-        for (CanvasBlock view : mLayouter.blocks) {
+        for (int i = 0, n = mLayouter.blocks.size(); i < n; i++) {
+            CanvasBlock view = mLayouter.blocks.get(i);
             canvas.translate(view.left - transX, view.top - transY);
             transX = view.left;
             transY = view.top;
@@ -754,7 +890,16 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
                 canvas.save();
                 canvas.clipRect(left + view.getPaddingLeft(), top, left + getWidth() - view.getPaddingRight(), top + height);
             }
-            mAdapter.onDrawBlock(this, view, canvas, left, top, left + getWidth(), top + height);
+            FrameMetrics.beginSection(FrameMetrics.PHASE_DRAW);
+            long start = metrics != null ? System.nanoTime() : 0;
+            try {
+                mAdapter.onDrawBlock(this, view, canvas, left, top, left + getWidth(), top + height);
+            } finally {
+                if (metrics != null) {
+                    metrics.addDraw(view.itemType, System.nanoTime() - start);
+                }
+                FrameMetrics.endSection();
+            }
             if (isClipPadding) {
                 canvas.restore();
             }
@@ -816,6 +961,7 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
     }
 
     static final int MAX_SCROLL_DURATION = 2000;
+    static final int SMOOTH_SCROLL_MAX_SCREENS = 3;
     private int computeScrollDuration(int dy) {
         final int absDy = Math.abs(dy);
         final int containerSize = getHeight();
@@ -886,6 +1032,10 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
             mAdapter.onAdapterDetachedFromScollView(this);
             mAdapter.unregisterObserver(mObserver);
         }
+        //a batch left open by the old adapter can never be closed
+        mObserver.batchDepth = 0;
+        cancelPreMeasure();
+        mRecycledBlockPool.clear();
         this.mAdapter = adapter;
         if (!mScroller.isFinished()) {
             mScroller.forceFinished(true);
@@ -899,15 +1049,17 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
     }
 
     public CanvasBlock getBlockAtY(int y) {
-        for (CanvasBlock cb : mLayouter.blocks) {
-            if (cb.getTop() <= y && cb.getBottom() >= y) {
-                return cb;
-            }
+        int i = mLayouter.firstBlockIndexBelow(y, true);
+        if (i < 0) {
+            return null;
         }
-        return null;
+        CanvasBlock cb = mLayouter.blockAt(i);
+        return cb.getTop() <= y ? cb : null;
     }
 
     public static abstract class Adapter<CB extends CanvasBlock> extends Observable<AdapterDataObserver> implements OnScrollListener,CanvasBlockParent {
+        public static final int ITEM_TYPE_NOT_RECYCLABLE = -1;
+        public static final long NO_ID = -1;
         private WeakReference<CanvasScrollView> canvasScrollView;
         public boolean hasObservers() {
             return !mObservers.isEmpty();
@@ -937,15 +1089,84 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
             }
         }
 
+        public void notifyItemMoved(int fromPosition, int toPosition) {
+            for (int i = mObservers.size() - 1; i >= 0; i--) {
+                mObservers.get(i).onItemMoved(fromPosition, toPosition);
+            }
+        }
+
+        /**
+         * notifications between this and {@link #endBatchedUpdates()} are queued and merged,
+         * and laid out in a single pass after endBatchedUpdates. calls may nest and must be
+         * paired on the ui thread, the scroll view keeps its old layout until the batch ends
+         */
+        public void beginBatchedUpdates() {
+            for (int i = mObservers.size() - 1; i >= 0; i--) {
+                mObservers.get(i).onBeginBatchedUpdates();
+            }
+        }
+
+        public void endBatchedUpdates() {
+            for (int i = mObservers.size() - 1; i >= 0; i--) {
+                mObservers.get(i).onEndBatchedUpdates();
+            }
+        }
+
         public abstract int getItemCount();
+
+        /**
+         * for a recyclable type (see {@link #getItemType}) this must return a new block which is
+         * already bound to position, recycled blocks of the same type are passed to {@link #bindBlock}
+         */
         public abstract CB getItem(CanvasScrollView parent, int position);
 
+        /**
+         * @return {@link #ITEM_TYPE_NOT_RECYCLABLE} if the block of position must not be reused,
+         * e.g. the adapter holds the blocks itself, otherwise a type >= 0, blocks of one type
+         * must be able to rebind to any position of that type
+         */
+        public int getItemType(int position) {
+            return ITEM_TYPE_NOT_RECYCLABLE;
+        }
+
+        /**
+         * a stable id of the item at position, it keys the heights kept by a {@link LayoutCache}.
+         * items of the same id must measure the same at the same width
+         */
+        public long getItemId(int position) {
+            return NO_ID;
+        }
+
+        /**
+         * true while items are still inserted at the end, e.g. a file is indexed in batches.
+         * a restored scroll position waits for its items meanwhile instead of being clamped to the end
+         */
+        public boolean isAppending() {
+            return false;
+        }
+
+        /**
+         * rebind a recycled block to position, it will be measured again after that
+         */
+        public void bindBlock(CanvasScrollView parent, CB block, int position) {
+        }
+
+        /**
+         * called when block is put into the {@link RecycledBlockPool}, release big references here
+         */
+        public void onBlockRecycled(CanvasScrollView parent, CB block) {
+        }
+
         public void onMeasureBlock(CanvasScrollView parent, CB block, int width) {
             block.onMeasure(parent, width);
         }
 
+        /**
+         * what {@link CanvasBlock#draw} draws may be replayed from the block display list cache,
+         * draw things that change without invalidating the block (e.g. the selection) after it
+         */
         public void onDrawBlock(CanvasScrollView parent, CB block,Canvas canvas, int left, int top, int right, int bottom) {
-            block.onDraw(parent, canvas, left, top, right, bottom);
+            block.draw(parent, canvas, left, top, right, bottom);
         }
 
         public void onBlockAttachedToView(CanvasScrollView parent, CB block) {
@@ -1000,14 +1221,36 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
         public void invalidate(CanvasBlock child) {
             notifyItemRangeChanged(child.position, 1);
         }
+
+        @Override
+        public void invalidateDrawing(CanvasBlock child, int top, int bottom) {
+            CanvasScrollView scrollView = getCanvasScrollView();
+            if (scrollView == null) {
+                return;
+            }
+            top = Math.max(0, child.getTop() + top);
+            bottom = Math.min(scrollView.getHeight(), child.getTop() + bottom);
+            if (top < bottom) {
+                scrollView.invalidate(0, top, scrollView.getWidth(), bottom);
+            }
+        }
     }
 
     public interface CanvasBlockParent {
+        /**
+         * the size of child may have changed, measure and draw it again
+         */
         void invalidate(CanvasBlock child);
+
+        /**
+         * only the drawing of child between top and bottom (relative to child) changed, draw it again
+         */
+        void invalidateDrawing(CanvasBlock child, int top, int bottom);
     }
 
     public static abstract class CanvasBlock {
         private int position;
+        private int itemType = Adapter.ITEM_TYPE_NOT_RECYCLABLE;
         private int width;
         private int height;
         private int top;
@@ -1018,6 +1261,8 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
         private int paddingTop;
         private int paddingBottom;
         private boolean clipPadding = true;
+        private BlockDisplayList displayList;
+        private BlockTileCache.BlockTiles tiles;
 
         public void setPadding(int l, int t, int r, int b) {
             this.paddingLeft = l;
@@ -1058,6 +1303,10 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
             return position;
         }
 
+        public final int getItemType() {
+            return itemType;
+        }
+
         public final void setWidth(int width) {
             this.width = width;
         }
@@ -1095,9 +1344,104 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
             onMeasure(parent, parentWidth, false);
         }
         public abstract void onMeasure(CanvasScrollView parent, int parentWidth, boolean horizontalScrollable);
+
+        /**
+         * called on a worker thread of the {@link MeasureScheduler} before the block enters the window.
+         * prepare what onMeasure(parent, parentWidth) needs without changing the measured size,
+         * onMeasure may run while this is still running, so both must lock the shared state.
+         *
+         * @return false if there is nothing to prepare
+         */
+        public boolean onPreMeasure(Context context, int parentWidth) {
+            return false;
+        }
         // left top right bottom 是view中需要绘制的区域，是相对于自身左顶点的坐标
         public abstract void onDraw(CanvasScrollView parent, Canvas canvas, int left, int top, int right, int bottom);
 
+        /**
+         * onDraw, or with {@link CanvasScrollView#setBlockDisplayListCacheEnabled} the replay of
+         * the whole block recorded by an earlier onDraw. without display lists the tiles of
+         * {@link CanvasScrollView#setBlockTileCache} are drawn if there is a tile cache
+         */
+        public final void draw(CanvasScrollView parent, Canvas canvas, int left, int top, int right, int bottom) {
+            if (!isDisplayListCacheable()) {
+                onDraw(parent, canvas, left, top, right, bottom);
+                return;
+            }
+            if (parent.mBlockDisplayListCacheEnabled && height <= parent.getHeight() * MAX_DISPLAY_LIST_SCREENS) {
+                if (displayList == null) {
+                    displayList = BlockDisplayList.create();
+                }
+                if (displayList != null && displayList.canDraw(canvas)) {
+                    int recordWidth = Math.max(width, parent.getWidth());
+                    if (!displayList.isValid(recordWidth, height)) {
+                        Canvas recordingCanvas = displayList.beginRecording(recordWidth, height);
+                        try {
+                            onDraw(parent, recordingCanvas, 0, 0, recordWidth, height);
+                        } finally {
+                            displayList.endRecording();
+                        }
+                    }
+                    displayList.draw(canvas);
+                    return;
+                }
+            }
+            BlockTileCache tileCache = parent.mBlockTileCache;
+            if (tileCache != null) {
+                if (tiles == null || tiles.cache != tileCache) {
+                    releaseTiles();
+                    tiles = tileCache.newBlockTiles();
+                }
+                if (tileCache.draw(parent, this, tiles, canvas, left, top, right, bottom)) {
+                    return;
+                }
+            }
+            onDraw(parent, canvas, left, top, right, bottom);
+        }
+
+        /**
+         * @return false if what onDraw draws changes without {@link #invalidate()} or
+         * {@link #invalidateDisplayList()}, such a block is never recorded or cached in tiles
+         */
+        public boolean isDisplayListCacheable() {
+            return true;
+        }
+
+        /**
+         * @return true for a stand-in whose height is only a guess, e.g. an item not loaded yet.
+         * its height is not recorded as the measured height of its position, nor kept in a LayoutCache
+         */
+        public boolean isHeightEstimated() {
+            return false;
+        }
+
+        /**
+         * the next draw records the block again
+         */
+        public void invalidateDisplayList() {
+            if (displayList != null) {
+                displayList.invalidate();
+            }
+            if (tiles != null) {
+                tiles.invalidate();
+            }
+        }
+
+        private void releaseDisplayList() {
+            if (displayList != null) {
+                displayList.release();
+                displayList = null;
+            }
+            releaseTiles();
+        }
+
+        private void releaseTiles() {
+            if (tiles != null) {
+                tiles.invalidate();
+                tiles = null;
+            }
+        }
+
         public final CanvasBlock setTop(int top) {
             this.top = top;
             return this;
@@ -1116,12 +1460,30 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
         }
 
         public void invalidate() {
+            invalidateDisplayList();
             CanvasBlockParent parent = this.parent;
             if (parent != null) {
                 parent.invalidate(this);
             }
         }
 
+        /**
+         * only what is drawn between top and bottom changed, not the size: the band is drawn
+         * again without measuring the block or relaying out the blocks around it
+         */
+        public void invalidateDrawing(int top, int bottom) {
+            if (displayList != null) {
+                displayList.invalidate();
+            }
+            if (tiles != null) {
+                tiles.invalidate(top, bottom);
+            }
+            CanvasBlockParent parent = this.parent;
+            if (parent != null) {
+                parent.invalidateDrawing(this, top, bottom);
+            }
+        }
+
         public void onAttachedToParent(CanvasBlockParent parent) {
             this.parent = parent;
         }
@@ -1138,135 +1500,894 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
         }
     }
 
-    private static class Layouter {
-        private boolean isInValidLayouting = false;
-        private List<InvalidLayoutHandler> invalidHandlers = new ArrayList<>();
-        private int firstBlockPosition = 0;
-        private final List<CanvasBlock> blocks = new ArrayList<>();
+    /**
+     * runs {@link CanvasBlock#onPreMeasure} of the upcoming blocks off the main thread
+     */
+    public interface MeasureScheduler {
+        /**
+         * called on the main thread, run task on a worker thread
+         */
+        void schedule(MeasureTask task);
 
-        public CanvasBlock blockAt(int index) {
-            return blocks.get(index);
-        }
+        /**
+         * drop all tasks not started yet
+         */
+        void cancelAll();
+    }
 
-        public CanvasBlock firstBlock() {
-            if (blocks.isEmpty()) {
-                return null;
-            }
-            return blocks.get(0);
-        }
+    public static final class MeasureTask implements Runnable {
+        private static final int STATE_PENDING = 0;
+        private static final int STATE_RUNNING = 1;
+        private static final int STATE_DONE = 2;
+        private static final int STATE_CANCELLED = 3;
 
-        public CanvasBlock lastBlock() {
-            if (blocks.isEmpty()) {
-                return null;
-            }
-            return blocks.get(blocks.size() - 1);
-        }
+        private final CanvasBlock block;
+        private final Context context;
+        private final int width;
+        private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
 
-        private void setFirstBlockPosition(int firstBlockPosition) {
-            this.firstBlockPosition = firstBlockPosition;
+        MeasureTask(CanvasBlock block, Context context, int width) {
+            this.block = block;
+            this.context = context;
+            this.width = width;
         }
 
-        public int getFirstBlockPosition() {
-            return firstBlockPosition;
+        @Override
+        public void run() {
+            if (!state.compareAndSet(STATE_PENDING, STATE_RUNNING)) {
+                return;
+            }
+            try {
+                block.onPreMeasure(context, width);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "onPreMeasure failed, block will be measured on main thread", e);
+            } finally {
+                state.set(STATE_DONE);
+            }
         }
 
-        public int getLastBlockPosition() {
-            return firstBlockPosition + blocks.size() - 1;
+        /**
+         * @return false if the task is running now, the block is still used by the worker
+         */
+        boolean cancel() {
+            return state.compareAndSet(STATE_PENDING, STATE_CANCELLED) || state.get() != STATE_RUNNING;
         }
 
-        public int blockCount() {
-            return blocks.size();
+        void markDone() {
+            state.set(STATE_DONE);
         }
 
-        public boolean isInvalid() {
-            return invalidHandlers.size() > 0;
+        public boolean isDone() {
+            return state.get() == STATE_DONE;
         }
+    }
 
-        private CanvasBlock createBlock(CanvasScrollView parent, Adapter adapter, int position, int y, boolean yIsTop, int width) {
-            CanvasBlock view = adapter.getItem(parent, position);
-            view.position = position;
-            adapter.onMeasureBlock(parent, view, width);
-            view.setTop(yIsTop ? y : y - view.getHeight());
-            adapter.onBlockAttachedToView(parent, view);
-            blocks.add(Math.max(0, position - firstBlockPosition), view);
-            return view;
-        }
+    /**
+     * set null to measure every block on the main thread when it enters the window
+     */
+    public void setMeasureScheduler(MeasureScheduler scheduler) {
+        cancelPreMeasure();
+        mMeasureScheduler = scheduler;
+        schedulePreMeasure();
+    }
 
-        /**
-         * @param parent
-         * @param adapter
-         * @param width
-         * @param fromTop  <= 0
-         * @param toBottom >= 0
-         */
-        private void fillWindow(CanvasScrollView parent, Adapter adapter, int width, int fromTop, int toBottom) {
-            if (adapter == null) {
-                return;
-            }
+    public MeasureScheduler getMeasureScheduler() {
+        return mMeasureScheduler;
+    }
 
-            if (getFirstBlockPosition() > 0) {
-                int y = blockCount() > 0 ? firstBlock().getTop() : 0;
-                for (int i = getFirstBlockPosition() - 1; i >= 0 && y > fromTop; i--) {
-                    setFirstBlockPosition(i);
-                    y -= createBlock(parent, adapter, i, y, false, width).getHeight();
-                }
-            }
+    /**
+     * @param count how many blocks above and below the window are pre measured
+     */
+    public void setPreMeasureCount(int count) {
+        mPreMeasureCount = Math.max(0, count);
+    }
 
-            if (getLastBlockPosition() < adapter.getItemCount()) {
-                int y = blockCount() > 0 ? lastBlock().getBottom() : 0;
-                for (int i = getLastBlockPosition() + 1; i < adapter.getItemCount() && y < toBottom; i++) {
-                    y += createBlock(parent, adapter, i, y, true, width).getHeight();
-                }
-            }
+    private void cancelPreMeasure() {
+        if (mMeasureScheduler != null) {
+            mMeasureScheduler.cancelAll();
         }
+        mLayouter.clearPrefetched(this);
+        resetPrefetchRange();
     }
 
-
-    //////////////////////////////////////////////////////
-
-
-    public abstract static class AdapterDataObserver {
-        public void notifyDataSetChanged() {
-            // Do nothing
+    private void schedulePreMeasure() {
+        if (mAdapter == null || mLayouter.blockCount() == 0 || getWidth() == 0) {
+            return;
         }
-        public void onItemRangeChanged(int positionStart, int itemCount) {
-            // do nothing
+        int first = mLayouter.getFirstBlockPosition();
+        int last = mLayouter.getLastBlockPosition();
+        int count = mMeasureScheduler == null ? 0 : mPreMeasureCount;
+        int from = Math.max(0, first - count);
+        int to = Math.min(mAdapter.getItemCount() - 1, last + count);
+        mLayouter.trimPrefetched(this, Math.min(from, mPrefetchFrom), Math.max(to, mPrefetchTo));
+        if (mMeasureScheduler == null) {
+            return;
         }
-        public void onItemRangeInserted(int positionStart, int itemCount) {
-            // do nothing
+        for (int pos = last + 1; pos <= to; pos++) {
+            preMeasure(pos);
         }
-        public void onItemRangeRemoved(int positionStart, int itemCount) {
-            // do nothing
+        for (int pos = first - 1; pos >= from; pos--) {
+            preMeasure(pos);
         }
     }
-    
-    private static abstract class InvalidLayoutHandler {
-        protected void removeBlocks(CanvasScrollView parent, List<CanvasBlock> blocks, int start, int end, Adapter adapter) {
+
+    private void preMeasure(int position) {
+        if (mLayouter.findPrefetched(position) >= 0) {
+            return;
+        }
+        CanvasBlock block = obtainBlock(mAdapter, position);
+        block.position = position;
+        MeasureTask task = new MeasureTask(block, getContext(), getWidth());
+        mLayouter.prefetched.add(task);
+        mMeasureScheduler.schedule(task);
+    }
+
+    /**
+     * create and measure blocks ahead of the scroll direction in the idle time after a frame,
+     * like RecyclerView's GapWorker. disabled blocks are only created when they enter the window.
+     */
+    public void setItemPrefetchEnabled(boolean enabled) {
+        mItemPrefetchEnabled = enabled;
+        if (!enabled) {
+            removeCallbacks(mPrefetchRunnable);
+            mPrefetchRunnable.posted = false;
+            resetPrefetchRange();
+        }
+    }
+
+    public boolean isItemPrefetchEnabled() {
+        return mItemPrefetchEnabled;
+    }
+
+    /**
+     * @param distance the max distance in pixels prefetched beyond the window, a fling prefetches
+     *                 up to {@link #PREFETCH_LOOKAHEAD_MS} of travel at its current velocity.
+     *                 -1 means one screen height
+     */
+    public void setMaxPrefetchDistance(int distance) {
+        mMaxPrefetchDistance = distance;
+    }
+
+    private void resetPrefetchRange() {
+        mPrefetchFrom = Integer.MAX_VALUE;
+        mPrefetchTo = -1;
+    }
+
+    private void postPrefetch(int dy) {
+        if (!mItemPrefetchEnabled || dy == 0) {
+            return;
+        }
+        mPrefetchRunnable.dy = dy;
+        if (!mPrefetchRunnable.posted) {
+            mPrefetchRunnable.posted = true;
+            post(mPrefetchRunnable);
+        }
+    }
+
+    private final PrefetchRunnable mPrefetchRunnable = new PrefetchRunnable();
+    private class PrefetchRunnable implements Runnable {
+        int dy;
+        boolean posted;
+        private long mAverageCreateNs;
+
+        @Override
+        public void run() {
+            posted = false;
+            if (!mItemPrefetchEnabled || mAdapter == null || mLayouter.blockCount() == 0
+                    || getWidth() == 0 || mLayouter.isInvalid()) {
+                return;
+            }
+            //posted from the frame that just drew, the next frame starts one interval after it
+            final long deadlineNs = TimeUnit.MILLISECONDS.toNanos(getDrawingTime()) + mFrameIntervalNs;
+            final int distance = getPrefetchDistance();
+            if (dy > 0) {
+                int y = mLayouter.lastBlock().getBottom() - getHeight();
+                int pos = mLayouter.getLastBlockPosition() + 1;
+                for (; pos < mAdapter.getItemCount() && y < distance; pos++) {
+                    CanvasBlock block = prefetch(pos, deadlineNs);
+                    if (block == null) {
+                        break;
+                    }
+                    y += block.getHeight();
+                }
+                mPrefetchFrom = Integer.MAX_VALUE;
+                mPrefetchTo = pos - 1;
+            } else {
+                int y = -mLayouter.firstBlock().getTop();
+                int pos = mLayouter.getFirstBlockPosition() - 1;
+                for (; pos >= 0 && y < distance; pos--) {
+                    CanvasBlock block = prefetch(pos, deadlineNs);
+                    if (block == null) {
+                        break;
+                    }
+                    y += block.getHeight();
+                }
+                mPrefetchFrom = pos + 1;
+                mPrefetchTo = -1;
+            }
+        }
+
+        private int getPrefetchDistance() {
+            int max = mMaxPrefetchDistance < 0 ? getHeight() : mMaxPrefetchDistance;
+            int distance = Math.abs(dy);
+            if (mScrollState == SCROLL_STATE_SETTLING) {
+                distance = Math.max(distance, (int) (mScroller.getCurrVelocity() * PREFETCH_LOOKAHEAD_MS / 1000));
+            }
+            return Math.min(distance, max);
+        }
+
+        /**
+         * @return null if there is no time left in this frame
+         */
+        private CanvasBlock prefetch(int position, long deadlineNs) {
+            int i = mLayouter.findPrefetched(position);
+            if (i >= 0) {
+                return mLayouter.prefetched.get(i).block;
+            }
+            long start = System.nanoTime();
+            if (start + mAverageCreateNs > deadlineNs) {
+                return null;
+            }
+            CanvasBlock block = obtainBlock(mAdapter, position);
+            block.position = position;
+            measureBlock(mAdapter, block, getWidth());
+            mLayouter.setMeasuredHeight(position, block);
+            MeasureTask task = new MeasureTask(block, getContext(), getWidth());
+            task.markDone();
+            mLayouter.prefetched.add(task);
+            long took = System.nanoTime() - start;
+            mAverageCreateNs = mAverageCreateNs == 0 ? took : (mAverageCreateNs * 3 + took) / 4;
+            return block;
+        }
+    }
+
+    private CanvasBlock obtainBlock(Adapter adapter, int position) {
+        FrameMetrics.beginSection(FrameMetrics.PHASE_CREATE);
+        long start = mFrameMetrics != null ? System.nanoTime() : 0;
+        try {
+            int type = adapter.getItemType(position);
+            CanvasBlock block = type == Adapter.ITEM_TYPE_NOT_RECYCLABLE ? null : mRecycledBlockPool.getRecycledBlock(type);
+            if (block == null) {
+                block = adapter.getItem(this, position);
+            } else {
+                adapter.bindBlock(this, block, position);
+            }
+            block.itemType = type;
+            return block;
+        } finally {
+            if (mFrameMetrics != null) {
+                mFrameMetrics.addPhase(FrameMetrics.PHASE_CREATE, System.nanoTime() - start);
+            }
+            FrameMetrics.endSection();
+        }
+    }
+
+    private void measureBlock(Adapter adapter, CanvasBlock block, int width) {
+        FrameMetrics.beginSection(FrameMetrics.PHASE_MEASURE);
+        long start = mFrameMetrics != null ? System.nanoTime() : 0;
+        try {
+            adapter.onMeasureBlock(this, block, width);
+            if (mLayoutCache != null && !block.isHeightEstimated()
+                    && block.position >= 0 && block.position < adapter.getItemCount()) {
+                long id = adapter.getItemId(block.position);
+                if (id != Adapter.NO_ID) {
+                    mLayoutCache.putHeight(id, width, block.getHeight());
+                }
+            }
+        } finally {
+            if (mFrameMetrics != null) {
+                mFrameMetrics.addPhase(FrameMetrics.PHASE_MEASURE, System.nanoTime() - start);
+            }
+            FrameMetrics.endSection();
+        }
+    }
+
+    private void attachBlock(Adapter adapter, CanvasBlock block) {
+        adapter.onBlockAttachedToView(this, block);
+        if (mFrameMetrics != null) {
+            mFrameMetrics.addAttached();
+        }
+    }
+
+    private void detachBlock(Adapter adapter, CanvasBlock block) {
+        if (mFrameMetrics != null) {
+            mFrameMetrics.addDetached();
+        }
+        adapter.onBlockDetachedFromView(this, block);
+        block.releaseDisplayList();
+        if (block.itemType == Adapter.ITEM_TYPE_NOT_RECYCLABLE) {
+            return;
+        }
+        if (draggedBlock == block) {
+            draggedBlock = null;
+        }
+        adapter.onBlockRecycled(this, block);
+        //a horizontal drag moved it, the next position starts unscrolled
+        block.setLeft(0);
+        mRecycledBlockPool.putRecycledBlock(block);
+    }
+
+    /**
+     * record every block into a display list (RenderNode on Q+, Picture on M..P) the first time it draws,
+     * scrolling then only replays it at the new translation. a block is recorded again after
+     * {@link CanvasBlock#invalidate()} or a range change, blocks whose drawing changes otherwise
+     * must return false from {@link CanvasBlock#isDisplayListCacheable()}. only works with hardware acceleration.
+     */
+    public void setBlockDisplayListCacheEnabled(boolean enabled) {
+        if (mBlockDisplayListCacheEnabled == enabled) {
+            return;
+        }
+        mBlockDisplayListCacheEnabled = enabled;
+        if (!enabled) {
+            for (CanvasBlock block : mLayouter.blocks) {
+                block.releaseDisplayList();
+            }
+        }
+        invalidate();
+    }
+
+    public boolean isBlockDisplayListCacheEnabled() {
+        return mBlockDisplayListCacheEnabled;
+    }
+
+    /**
+     * cache block drawings in bitmap tiles where display lists can not be used (below M, software
+     * layers, or when the display list cache is disabled). the selection is still drawn live.
+     * a cache may be shared by several CanvasScrollViews, null disables it
+     */
+    public void setBlockTileCache(BlockTileCache cache) {
+        if (mBlockTileCache == cache) {
+            return;
+        }
+        if (mBlockTileCache != null) {
+            for (CanvasBlock block : mLayouter.blocks) {
+                block.releaseTiles();
+            }
+            if (ViewCompat.isAttachedToWindow(this)) {
+                getContext().getApplicationContext().unregisterComponentCallbacks(mBlockTileCache);
+            }
+        }
+        mBlockTileCache = cache;
+        if (cache != null && ViewCompat.isAttachedToWindow(this)) {
+            getContext().getApplicationContext().registerComponentCallbacks(cache);
+        }
+        invalidate();
+    }
+
+    public BlockTileCache getBlockTileCache() {
+        return mBlockTileCache;
+    }
+
+    /**
+     * keep the measured heights of items with a {@link Adapter#getItemId stable id} in cache, and
+     * take the heights of items not measured yet from it, so the scroll range and scrollToPosition
+     * are exact before the document is measured. the cache is flushed when the view is detached
+     * from its window, null disables it
+     */
+    public void setLayoutCache(LayoutCache cache) {
+        if (mLayoutCache == cache) {
+            return;
+        }
+        if (mLayoutCache != null) {
+            mLayoutCache.flush();
+        }
+        mLayoutCache = cache;
+        if (cache != null && mAdapter != null) {
+            loadCachedHeights(mAdapter, 0, mAdapter.getItemCount());
+        }
+    }
+
+    public LayoutCache getLayoutCache() {
+        return mLayoutCache;
+    }
+
+    /**
+     * fills the heights of [from, to) not measured yet from the layout cache. the lookups run a few
+     * at a time on the next frames, a replay does not look up every item
+     */
+    private void loadCachedHeights(Adapter adapter, int from, int to) {
+        if (mLayoutCache == null || adapter == null || from >= to) {
+            return;
+        }
+        mCachedHeightsLoader.add(Math.max(0, from), to);
+    }
+
+    /**
+     * items from positionStart on moved by count, negative for a removal
+     */
+    private void offsetCachedHeights(int positionStart, int count) {
+        mCachedHeightsLoader.offset(positionStart, count);
+    }
+
+    private final CachedHeightsLoader mCachedHeightsLoader = new CachedHeightsLoader();
+    private class CachedHeightsLoader implements Runnable {
+        private static final long FRAME_BUDGET_NS = 4_000_000L;
+        // positions still to look up
+        int from;
+        int to;
+        boolean posted;
+
+        void add(int from, int to) {
+            if (this.from < this.to) {
+                from = Math.min(from, this.from);
+                to = Math.max(to, this.to);
+            }
+            this.from = from;
+            this.to = to;
+            post();
+        }
+
+        void offset(int positionStart, int count) {
+            if (from >= to) {
+                return;
+            }
+            from = offsetPosition(from, positionStart, count);
+            to = offsetPosition(to, positionStart, count);
+        }
+
+        private int offsetPosition(int position, int positionStart, int count) {
+            if (position < positionStart) {
+                return position;
+            }
+            //a removed position goes to where the removed range was
+            return count < 0 ? Math.max(positionStart, position + count) : position + count;
+        }
+
+        private void post() {
+            if (!posted) {
+                posted = true;
+                ViewCompat.postOnAnimation(CanvasScrollView.this, this);
+            }
+        }
+
+        @Override
+        public void run() {
+            posted = false;
+            Adapter adapter = mAdapter;
+            if (mLayoutCache == null || adapter == null) {
+                from = to = 0;
+                return;
+            }
+            int width = getWidth();
+            if (width <= 0 || mLayouter.isInvalid()) {
+                //heights do not match the adapter until the replay, or nothing is laid out yet
+                post();
+                return;
+            }
+            BlockHeightIndex heights = mLayouter.heights;
+            to = Math.min(to, heights.size());
+            //few positions are cheaper to update than to rebuild the trees for
+            boolean bulk = (to - from) * 32L > heights.size();
+            long start = System.nanoTime();
+            for (int n = 0; from < to; from++, n++) {
+                if ((n & 63) == 63 && System.nanoTime() - start > FRAME_BUDGET_NS) {
+                    break;
+                }
+                if (heights.isMeasured(from)) {
+                    continue;
+                }
+                long id = adapter.getItemId(from);
+                int h = id == Adapter.NO_ID ? -1 : mLayoutCache.getHeight(id, width);
+                if (h < 0) {
+                    continue;
+                }
+                if (bulk) {
+                    heights.load(from, h);
+                } else {
+                    heights.set(from, h);
+                }
+            }
+            if (from < to) {
+                post();
+            } else {
+                from = to = 0;
+            }
+        }
+    }
+
+    /**
+     * the items of [positionStart, positionStart + itemCount) changed, their cached heights are stale
+     */
+    private void dropCachedHeights(Adapter adapter, int positionStart, int itemCount) {
+        if (mLayoutCache == null || adapter == null) {
+            return;
+        }
+        int end = Math.min(adapter.getItemCount(), positionStart + itemCount);
+        for (int i = Math.max(0, positionStart); i < end; i++) {
+            long id = adapter.getItemId(i);
+            if (id != Adapter.NO_ID) {
+                mLayoutCache.remove(id);
+            }
+        }
+    }
+
+    /**
+     * time the phases of every frame (see {@link FrameMetrics}) and report them after onDraw,
+     * null stops timing. systrace sections are emitted either way.
+     */
+    public void setMetricsListener(MetricsListener listener) {
+        mMetricsListener = listener;
+        if (listener == null) {
+            mFrameMetrics = null;
+        } else if (mFrameMetrics == null) {
+            mFrameMetrics = new FrameMetrics();
+        }
+    }
+
+    /**
+     * @return the metrics with the histograms of all frames so far, null without a MetricsListener
+     */
+    public FrameMetrics getFrameMetrics() {
+        return mFrameMetrics;
+    }
+
+    public interface MetricsListener {
+        /**
+         * called on the ui thread at the end of every onDraw, metrics is reused for the next frame
+         */
+        void onFrame(CanvasScrollView view, FrameMetrics metrics);
+    }
+
+    public RecycledBlockPool getRecycledBlockPool() {
+        return mRecycledBlockPool;
+    }
+
+    /**
+     * share one pool between several CanvasScrollViews whose adapters use the same types
+     */
+    public void setRecycledBlockPool(RecycledBlockPool pool) {
+        mRecycledBlockPool = pool == null ? new RecycledBlockPool() : pool;
+    }
+
+    /**
+     * detached blocks of a recyclable type are kept here, at most
+     * {@link #DEFAULT_MAX_SCRAP} per type unless changed with {@link #setMaxRecycledBlocks}
+     */
+    public static class RecycledBlockPool {
+        private static final int DEFAULT_MAX_SCRAP = 5;
+        private final SparseArray<ScrapData> mScrap = new SparseArray<>();
+
+        private static class ScrapData {
+            final ArrayList<CanvasBlock> blocks = new ArrayList<>();
+            int maxScrap = DEFAULT_MAX_SCRAP;
+        }
+
+        private ScrapData getScrapDataForType(int type) {
+            ScrapData data = mScrap.get(type);
+            if (data == null) {
+                data = new ScrapData();
+                mScrap.put(type, data);
+            }
+            return data;
+        }
+
+        public void setMaxRecycledBlocks(int type, int max) {
+            ScrapData data = getScrapDataForType(type);
+            data.maxScrap = max;
+            while (data.blocks.size() > max) {
+                data.blocks.remove(data.blocks.size() - 1);
+            }
+        }
+
+        public int getRecycledBlockCount(int type) {
+            ScrapData data = mScrap.get(type);
+            return data == null ? 0 : data.blocks.size();
+        }
+
+        public CanvasBlock getRecycledBlock(int type) {
+            ScrapData data = mScrap.get(type);
+            if (data == null || data.blocks.isEmpty()) {
+                return null;
+            }
+            return data.blocks.remove(data.blocks.size() - 1);
+        }
+
+        public void putRecycledBlock(CanvasBlock block) {
+            ScrapData data = getScrapDataForType(block.itemType);
+            if (data.blocks.size() >= data.maxScrap) {
+                return;
+            }
+            data.blocks.add(block);
+        }
+
+        public void clear() {
+            for (int i = 0; i < mScrap.size(); i++) {
+                mScrap.valueAt(i).blocks.clear();
+            }
+        }
+    }
+
+    private static class Layouter {
+        private boolean isInValidLayouting = false;
+        private List<InvalidLayoutHandler> invalidHandlers = new ArrayList<>();
+        private int firstBlockPosition = 0;
+        private final List<CanvasBlock> blocks = new ArrayList<>();
+        private final BlockHeightIndex heights = new BlockHeightIndex();
+        // blocks of upcoming positions, created on main thread and measured by the MeasureScheduler
+        private final List<MeasureTask> prefetched = new ArrayList<>();
+
+        public CanvasBlock blockAt(int index) {
+            return blocks.get(index);
+        }
+
+        public CanvasBlock firstBlock() {
+            if (blocks.isEmpty()) {
+                return null;
+            }
+            return blocks.get(0);
+        }
+
+        public CanvasBlock lastBlock() {
+            if (blocks.isEmpty()) {
+                return null;
+            }
+            return blocks.get(blocks.size() - 1);
+        }
+
+        private void setFirstBlockPosition(int firstBlockPosition) {
+            this.firstBlockPosition = firstBlockPosition;
+        }
+
+        public int getFirstBlockPosition() {
+            return firstBlockPosition;
+        }
+
+        public int getLastBlockPosition() {
+            return firstBlockPosition + blocks.size() - 1;
+        }
+
+        public int blockCount() {
+            return blocks.size();
+        }
+
+        public boolean isInvalid() {
+            return invalidHandlers.size() > 0;
+        }
+
+        /**
+         * queue a handler, merging it into the last queued one when they touch the same range,
+         * so a burst of small notifications is replayed as a few range ops
+         */
+        private void addInvalidHandler(InvalidLayoutHandler h) {
+            if (h instanceof InvalidLayoutHandlerOnChanged) {
+                //replays everything from the adapter, the queued ops are useless
+                invalidHandlers.clear();
+                invalidHandlers.add(h);
+                return;
+            }
+            if (!invalidHandlers.isEmpty()) {
+                int last = invalidHandlers.size() - 1;
+                InvalidLayoutHandler prev = invalidHandlers.get(last);
+                if (prev.absorb(h)) {
+                    if (prev.isEmpty()) {
+                        invalidHandlers.remove(last);
+                    }
+                    return;
+                }
+            }
+            invalidHandlers.add(h);
+        }
+
+        private CanvasBlock createBlock(CanvasScrollView parent, Adapter adapter, int position, int y, boolean yIsTop, int width) {
+            CanvasBlock view = takePrefetched(position);
+            if (view == null) {
+                view = parent.obtainBlock(adapter, position);
+            }
+            view.position = position;
+            parent.measureBlock(adapter, view, width);
+            setMeasuredHeight(position, view);
+            view.setTop(yIsTop ? y : y - view.getHeight());
+            parent.attachBlock(adapter, view);
+            blocks.add(Math.max(0, position - firstBlockPosition), view);
+            return view;
+        }
+
+        /**
+         * blocks are contiguous and sorted by top, so their bottoms are sorted too
+         *
+         * @return index of the first block whose bottom is below y (or at y if inclusive), -1 if none
+         */
+        private int firstBlockIndexBelow(int y, boolean inclusive) {
+            int lo = 0, hi = blocks.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int bottom = blocks.get(mid).getBottom();
+                if (bottom > y || (inclusive && bottom == y)) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            return lo < blocks.size() ? lo : -1;
+        }
+
+        private int findPrefetched(int position) {
+            for (int i = 0; i < prefetched.size(); i++) {
+                if (prefetched.get(i).block.position == position) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * if the task is not done yet the block measures itself synchronously in onMeasure
+         */
+        private CanvasBlock takePrefetched(int position) {
+            int i = findPrefetched(position);
+            if (i < 0) {
+                return null;
+            }
+            MeasureTask task = prefetched.remove(i);
+            task.cancel();
+            return task.block;
+        }
+
+        private void dropPrefetched(CanvasScrollView parent, MeasureTask task) {
+            //a block still used by the worker can not be reused
+            if (task.cancel() && task.block.itemType != Adapter.ITEM_TYPE_NOT_RECYCLABLE) {
+                parent.mRecycledBlockPool.putRecycledBlock(task.block);
+            }
+        }
+
+        private void trimPrefetched(CanvasScrollView parent, int from, int to) {
+            for (int i = prefetched.size() - 1; i >= 0; i--) {
+                MeasureTask task = prefetched.get(i);
+                int position = task.block.position;
+                if (position < from || position > to
+                        || (position >= firstBlockPosition && position <= getLastBlockPosition())) {
+                    dropPrefetched(parent, prefetched.remove(i));
+                }
+            }
+        }
+
+        private void clearPrefetched(CanvasScrollView parent) {
+            for (int i = prefetched.size() - 1; i >= 0; i--) {
+                dropPrefetched(parent, prefetched.remove(i));
+            }
+        }
+
+        /**
+         * detach all blocks and start a new window with position at top
+         */
+        private void fillWindowFrom(CanvasScrollView parent, Adapter adapter, int width, int position, int top, int bottom) {
+            for (int i = blocks.size() - 1; i >= 0; i--) {
+                parent.detachBlock(adapter, blocks.remove(i));
+            }
+            setFirstBlockPosition(position);
+            createBlock(parent, adapter, position, top, true, width);
+            fillWindow(parent, adapter, width, 0, bottom);
+        }
+
+        /**
+         * the handlers keep heights in step with the adapter, this is only a safety net
+         * for adapters which changed their count without notifying
+         */
+        private void syncHeights(CanvasScrollView parent, Adapter adapter) {
+            int itemCount = adapter == null ? 0 : adapter.getItemCount();
+            if (heights.size() == itemCount) {
+                return;
+            }
+            heights.reset(itemCount);
+            parent.loadCachedHeights(adapter, 0, itemCount);
+            for (CanvasBlock cb : blocks) {
+                setMeasuredHeight(cb.position, cb);
+            }
+        }
+
+        /**
+         * a block whose height is a guess leaves its position unmeasured, the estimate stays honest
+         */
+        private void setMeasuredHeight(int position, CanvasBlock block) {
+            if (!block.isHeightEstimated()) {
+                heights.set(position, block.getHeight());
+            }
+        }
+
+        /**
+         * @param parent
+         * @param adapter
+         * @param width
+         * @param fromTop  <= 0
+         * @param toBottom >= 0
+         */
+        private void fillWindow(CanvasScrollView parent, Adapter adapter, int width, int fromTop, int toBottom) {
+            if (adapter == null) {
+                return;
+            }
+
+            if (getFirstBlockPosition() > 0) {
+                int y = blockCount() > 0 ? firstBlock().getTop() : 0;
+                for (int i = getFirstBlockPosition() - 1; i >= 0 && y > fromTop; i--) {
+                    setFirstBlockPosition(i);
+                    y -= createBlock(parent, adapter, i, y, false, width).getHeight();
+                }
+            }
+
+            if (getLastBlockPosition() < adapter.getItemCount()) {
+                int y = blockCount() > 0 ? lastBlock().getBottom() : 0;
+                for (int i = getLastBlockPosition() + 1; i < adapter.getItemCount() && y < toBottom; i++) {
+                    y += createBlock(parent, adapter, i, y, true, width).getHeight();
+                }
+            }
+        }
+    }
+
+
+    //////////////////////////////////////////////////////
+
+
+    public abstract static class AdapterDataObserver {
+        public void notifyDataSetChanged() {
+            // Do nothing
+        }
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            // do nothing
+        }
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            // do nothing
+        }
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            // do nothing
+        }
+        public void onItemMoved(int fromPosition, int toPosition) {
+            // do nothing
+        }
+        public void onBeginBatchedUpdates() {
+            // do nothing
+        }
+        public void onEndBatchedUpdates() {
+            // do nothing
+        }
+    }
+    
+    private static abstract class InvalidLayoutHandler {
+        protected void removeBlocks(CanvasScrollView parent, List<CanvasBlock> blocks, int start, int end, Adapter adapter) {
             start = Math.max(0, start);
             end = Math.min(end, blocks.size());
             for (int i = end - 1; i>= start;i--) {
-                adapter.onBlockDetachedFromView(parent, blocks.remove(i));
+                parent.detachBlock(adapter, blocks.remove(i));
             }
         }
         protected CanvasBlock detachedBlock(CanvasScrollView parent, CanvasBlock block, Adapter adapter) {
-            adapter.onBlockDetachedFromView(parent, block);
+            parent.detachBlock(adapter, block);
             return block;
         }
         protected CanvasBlock attachedBlock(CanvasScrollView parent, CanvasBlock block, Adapter adapter) {
-            adapter.onBlockAttachedToView(parent, block);
+            parent.attachBlock(adapter, block);
             return block;
         }
+        /**
+         * try to merge next, which is notified right after this, into this
+         * @return true if next is merged and should not be queued
+         */
+        boolean absorb(InvalidLayoutHandler next) {
+            return false;
+        }
+        boolean isEmpty() {
+            return false;
+        }
         abstract void layout(CanvasScrollView parent, Layouter layouter, Adapter adapter);
     }
 
     private static class InvalidLayoutHandlerOnChanged extends InvalidLayoutHandler {
 
+        @Override
+        boolean absorb(InvalidLayoutHandler next) {
+            return true;
+        }
+
         @Override
         public void layout(CanvasScrollView parent, Layouter layouter, Adapter adapter) {
             removeBlocks(parent, layouter.blocks, 0, layouter.blocks.size(), adapter);
+            layouter.heights.reset(adapter == null ? 0 : adapter.getItemCount());
             if (adapter == null || adapter.getItemCount() == 0) {
                 return;
             }
+            parent.loadCachedHeights(adapter, 0, adapter.getItemCount());
+            if (parent.restorePendingAnchor(adapter, !adapter.isAppending())) {
+                return;
+            }
             if (layouter.firstBlockPosition >= adapter.getItemCount()) {
                 layouter.firstBlockPosition = adapter.getItemCount() - 1;
             }
@@ -1275,19 +2396,38 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
     }
 
     private static class InvalidLayoutHandlerRangeChanged extends InvalidLayoutHandler {
-        final int positionStart;
-        final int itemCount;
+        int positionStart;
+        int itemCount;
 
         private InvalidLayoutHandlerRangeChanged(int positionStart, int itemCount) {
             this.positionStart = positionStart;
             this.itemCount = itemCount;
         }
 
+        @Override
+        boolean absorb(InvalidLayoutHandler next) {
+            if (!(next instanceof InvalidLayoutHandlerRangeChanged)) {
+                return false;
+            }
+            InvalidLayoutHandlerRangeChanged h = (InvalidLayoutHandlerRangeChanged) next;
+            int end = positionStart + itemCount;
+            if (h.positionStart > end || h.positionStart + h.itemCount < positionStart) {
+                return false;
+            }
+            //overlapping or adjacent, change the union
+            int start = Math.min(positionStart, h.positionStart);
+            itemCount = Math.max(end, h.positionStart + h.itemCount) - start;
+            positionStart = start;
+            return true;
+        }
+
         @Override
         public void layout(CanvasScrollView parent, Layouter layouter, Adapter adapter) {
             if (adapter == null) {
                 return;
             }
+            parent.dropCachedHeights(adapter, positionStart, itemCount);
+            layouter.heights.invalidate(positionStart, itemCount);
             if (positionStart > layouter.getLastBlockPosition() || positionStart + itemCount - 1 < layouter.firstBlockPosition) {
                 return;
             }
@@ -1298,7 +2438,20 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
             int y = layouter.blocks.get(start - layouter.firstBlockPosition).top;
             for (int i = start, k = start - layouter.firstBlockPosition; i < end; i++, k++) {
                 CanvasBlock cb = layouter.blocks.get(k);
-                cb.onMeasure(parent, parent.getWidth());
+                if (cb.itemType != Adapter.ITEM_TYPE_NOT_RECYCLABLE) {
+                    if (adapter.getItemType(i) == cb.itemType) {
+                        adapter.bindBlock(parent, cb, i);
+                    } else {
+                        parent.detachBlock(adapter, cb);
+                        cb = parent.obtainBlock(adapter, i);
+                        cb.position = i;
+                        parent.attachBlock(adapter, cb);
+                        layouter.blocks.set(k, cb);
+                    }
+                }
+                cb.invalidateDisplayList();
+                parent.measureBlock(adapter, cb, parent.getWidth());
+                layouter.setMeasuredHeight(i, cb);
                 y += cb.setTop(y).getHeight();
                 if (y >= parent.getBottom()) {
                     removeBlocks(parent, layouter.blocks, k+1, layouter.blocks.size(), adapter);
@@ -1316,19 +2469,49 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
 
 
     private static class InvalidLayoutHandlerRangeInserted extends InvalidLayoutHandler {
-        final int positionStart;
-        final int itemCount;
+        int positionStart;
+        int itemCount;
 
         private InvalidLayoutHandlerRangeInserted(int positionStart, int itemCount) {
             this.positionStart = positionStart;
             this.itemCount = itemCount;
         }
 
+        @Override
+        boolean absorb(InvalidLayoutHandler next) {
+            int end = positionStart + itemCount;
+            if (next instanceof InvalidLayoutHandlerRangeInserted) {
+                InvalidLayoutHandlerRangeInserted h = (InvalidLayoutHandlerRangeInserted) next;
+                //inserted inside or right after the inserted range
+                if (h.positionStart >= positionStart && h.positionStart <= end) {
+                    itemCount += h.itemCount;
+                    return true;
+                }
+            } else if (next instanceof InvalidLayoutHandlerRangeChanged) {
+                InvalidLayoutHandlerRangeChanged h = (InvalidLayoutHandlerRangeChanged) next;
+                //the inserted blocks are created from the adapter anyway
+                return h.positionStart >= positionStart && h.positionStart + h.itemCount <= end;
+            } else if (next instanceof InvalidLayoutHandlerRangeRemoved) {
+                InvalidLayoutHandlerRangeRemoved h = (InvalidLayoutHandlerRangeRemoved) next;
+                //removed some of the items just inserted
+                if (h.positionStart >= positionStart && h.positionStart + h.itemCount <= end) {
+                    itemCount -= h.itemCount;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        boolean isEmpty() {
+            return itemCount <= 0;
+        }
+
         private void removeBlocksIfOutOfScreen(CanvasScrollView parent, List<CanvasBlock> blocks, Adapter adapter, int from, int insertHeight, int bottom) {
             for (int i = blocks.size() -1; i >= from; i--) {
                 CanvasBlock view = blocks.get(i);
                 if (view.top + insertHeight >= bottom) {
-                    adapter.onBlockDetachedFromView(parent, blocks.remove(i));
+                    parent.detachBlock(adapter, blocks.remove(i));
                 } else {
                     break;
                 }
@@ -1340,6 +2523,19 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
             if (adapter == null) {
                 return;
             }
+            layouter.heights.insert(positionStart, itemCount);
+            parent.offsetCachedHeights(positionStart, itemCount);
+            parent.loadCachedHeights(adapter, positionStart, positionStart + itemCount);
+            //a streaming adapter may insert the restored anchor after the first screen is shown
+            if (parent.restorePendingAnchor(adapter, !adapter.isAppending())) {
+                return;
+            }
+            if (layouter.blocks.isEmpty()) {
+                //nothing laid out, e.g. the first items of an empty adapter
+                layouter.firstBlockPosition = Math.max(0, Math.min(layouter.firstBlockPosition, adapter.getItemCount() - 1));
+                layouter.fillWindow(parent, adapter, parent.getWidth(), 0, parent.getBottom());
+                return;
+            }
             if (positionStart > layouter.getLastBlockPosition()) {
                 return;
             }
@@ -1378,19 +2574,36 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
 
 
     private static class InvalidLayoutHandlerRangeRemoved extends InvalidLayoutHandler {
-        final int positionStart;
-        final int itemCount;
+        int positionStart;
+        int itemCount;
 
         private InvalidLayoutHandlerRangeRemoved(int positionStart, int itemCount) {
             this.positionStart = positionStart;
             this.itemCount = itemCount;
         }
 
+        @Override
+        boolean absorb(InvalidLayoutHandler next) {
+            if (!(next instanceof InvalidLayoutHandlerRangeRemoved)) {
+                return false;
+            }
+            InvalidLayoutHandlerRangeRemoved h = (InvalidLayoutHandlerRangeRemoved) next;
+            //next is in the positions after this removal, it touches this one if it covers positionStart
+            if (h.positionStart > positionStart || h.positionStart + h.itemCount < positionStart) {
+                return false;
+            }
+            positionStart = h.positionStart;
+            itemCount += h.itemCount;
+            return true;
+        }
+
         @Override
         public void layout(CanvasScrollView parent, Layouter layouter, Adapter adapter) {
             if (adapter == null) {
                 return;
             }
+            layouter.heights.remove(positionStart, itemCount);
+            parent.offsetCachedHeights(positionStart, -itemCount);
 
             int start = Math.max(0, positionStart - layouter.getFirstBlockPosition());
             int end = Math.max(0, Math.min(layouter.blockCount(), positionStart + itemCount - layouter.getFirstBlockPosition()));
@@ -1423,33 +2636,125 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
         }
     }
     
+    /**
+     * the block keeps its measured layout when both positions are in the window
+     */
+    private static class InvalidLayoutHandlerMoved extends InvalidLayoutHandler {
+        final int fromPosition;
+        final int toPosition;
+
+        private InvalidLayoutHandlerMoved(int fromPosition, int toPosition) {
+            this.fromPosition = fromPosition;
+            this.toPosition = toPosition;
+        }
+
+        @Override
+        public void layout(CanvasScrollView parent, Layouter layouter, Adapter adapter) {
+            if (adapter == null || fromPosition == toPosition) {
+                return;
+            }
+            layouter.heights.move(fromPosition, toPosition);
+            List<CanvasBlock> blocks = layouter.blocks;
+            if (blocks.isEmpty()) {
+                return;
+            }
+            int y = blocks.get(0).top;
+            int first = layouter.firstBlockPosition;
+            CanvasBlock moved = null;
+            int k = fromPosition - first;
+            if (k >= 0 && k < blocks.size()) {
+                moved = blocks.remove(k);
+            } else if (k < 0) {
+                first--;
+            }
+            boolean create = false;
+            k = toPosition - first;
+            if (k < 0) {
+                first++;
+            } else if (k < blocks.size() || (k == blocks.size() && moved != null)) {
+                if (moved != null) {
+                    blocks.add(k, moved);
+                    moved = null;
+                } else {
+                    create = true;
+                }
+            }
+            if (moved != null) {
+                parent.detachBlock(adapter, moved);
+            }
+            layouter.firstBlockPosition = first;
+            if (create) {
+                layouter.createBlock(parent, adapter, toPosition, y, true, parent.getWidth());
+            }
+            for (int i = 0; i < blocks.size(); i++) {
+                CanvasBlock cb = blocks.get(i);
+                if (y >= parent.getBottom()) {
+                    removeBlocks(parent, blocks, i, blocks.size(), adapter);
+                    break;
+                }
+                cb.position = first + i;
+                y += cb.setTop(y).getHeight();
+            }
+            layouter.fillWindow(parent, adapter, parent.getWidth(), 0, parent.getBottom());
+        }
+    }
+
     private class ScrollViewDataObserver extends AdapterDataObserver {
+        private int batchDepth = 0;
+
+        boolean isBatching() {
+            return batchDepth > 0;
+        }
+
+        @Override
+        public void onBeginBatchedUpdates() {
+            batchDepth++;
+        }
+
+        @Override
+        public void onEndBatchedUpdates() {
+            if (batchDepth == 0) {
+                return;
+            }
+            batchDepth--;
+            if (batchDepth == 0 && mLayouter.isInvalid()) {
+                requestLayout();
+                invalidate();
+            }
+        }
+
+        private void enqueue(InvalidLayoutHandler h) {
+            cancelPreMeasure();
+            mLayouter.addInvalidHandler(h);
+            if (batchDepth == 0) {
+                requestLayout();
+                invalidate();
+            }
+        }
+
         @Override
         public void notifyDataSetChanged() {
-            mLayouter.invalidHandlers.add(new InvalidLayoutHandlerOnChanged());
-            requestLayout();
-            invalidate();
+            enqueue(new InvalidLayoutHandlerOnChanged());
         }
 
         @Override
         public void onItemRangeChanged(int positionStart, int itemCount) {
-            mLayouter.invalidHandlers.add(new InvalidLayoutHandlerRangeChanged(positionStart, itemCount));
-            requestLayout();
-            invalidate();
+            enqueue(new InvalidLayoutHandlerRangeChanged(positionStart, itemCount));
         }
 
         @Override
         public void onItemRangeInserted(int positionStart, int itemCount) {
-            mLayouter.invalidHandlers.add(new InvalidLayoutHandlerRangeInserted(positionStart, itemCount));
-            requestLayout();
-            invalidate();
+            enqueue(new InvalidLayoutHandlerRangeInserted(positionStart, itemCount));
         }
 
         @Override
         public void onItemRangeRemoved(int positionStart, int itemCount) {
-            mLayouter.invalidHandlers.add(new InvalidLayoutHandlerRangeRemoved(positionStart, itemCount));
-            requestLayout();
-            invalidate();
+            enqueue(new InvalidLayoutHandlerRangeRemoved(positionStart, itemCount));
+        }
+
+        @Override
+        public void onItemMoved(int fromPosition, int toPosition) {
+            enqueue(new InvalidLayoutHandlerMoved(fromPosition, toPosition));
         }
     }
 
@@ -1535,10 +2840,14 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
             return;
         }
         mScrollState = state;
+        if (state == SCROLL_STATE_IDLE) {
+            resetPrefetchRange();
+        }
         dispatchOnScrollStateChanged(state);
     }
 
     public void stopScroll() {
+        smoothScrollRunnable.stop();
         setScrollState(SCROLL_STATE_IDLE);
         if (!mScroller.isFinished()) {
             abortAnimatedScroll();
@@ -1626,14 +2935,202 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
         return mLayouter.getLastBlockPosition();
     }
 
+    /**
+     * @return the average height of the measured blocks, 0 if none is measured yet
+     */
+    int getEstimatedBlockHeight() {
+        return mLayouter.heights.estimatedHeight();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        Display display = ViewCompat.getDisplay(this);
+        float refreshRate = display == null ? 60 : display.getRefreshRate();
+        if (refreshRate < 30) {
+            refreshRate = 60;
+        }
+        mFrameIntervalNs = (long) (TimeUnit.SECONDS.toNanos(1) / refreshRate);
+        BitmapPool.registerDefault(getContext());
+        if (mBlockTileCache != null) {
+            getContext().getApplicationContext().registerComponentCallbacks(mBlockTileCache);
+        }
+    }
+
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
+        removeCallbacks(mPrefetchRunnable);
+        mPrefetchRunnable.posted = false;
         if (mAdapter != null) {
             mAdapter.onScrollviewDetachedFromWindow(this);
         }
         flingRunnable.stop();
         flingChildXRunnable.stop();
+        smoothScrollRunnable.stop();
+        cancelPreMeasure();
+        if (mBlockTileCache != null) {
+            getContext().getApplicationContext().unregisterComponentCallbacks(mBlockTileCache);
+        }
+        if (mLayoutCache != null) {
+            mLayoutCache.flush();
+        }
+    }
+
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        SavedState state = new SavedState(super.onSaveInstanceState());
+        if (mPendingAnchor != null) {
+            //not laid out since it was restored
+            state.copyAnchor(mPendingAnchor);
+            return state;
+        }
+        ensureLayouterValid();
+        CanvasBlock anchor = mLayouter.firstBlock();
+        if (anchor != null && mAdapter != null) {
+            state.position = anchor.position;
+            state.offset = -anchor.getTop();
+            state.height = anchor.getHeight();
+            state.width = getWidth();
+            state.stableId = mAdapter.getItemId(anchor.position);
+        }
+        return state;
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Parcelable state) {
+        if (!(state instanceof SavedState)) {
+            super.onRestoreInstanceState(state);
+            return;
+        }
+        SavedState ss = (SavedState) state;
+        super.onRestoreInstanceState(ss.getSuperState());
+        if (ss.position < 0) {
+            return;
+        }
+        mPendingAnchor = ss;
+        mObserver.notifyDataSetChanged();
+    }
+
+    /**
+     * fills the window from the restored anchor, nothing above it is measured. the offset in the
+     * anchor block is scaled with its height when the width changed
+     *
+     * @param clamp false to wait while the anchor position is not inserted yet, see {@link Adapter#isAppending()}.
+     *              then the anchor also stays pending while the items after it do not fill the window,
+     *              the next insert places it again. otherwise the window is clamped to the end like
+     *              {@link #scrollToPosition(int, int)} does
+     * @return false if there is no anchor or it can not be applied yet
+     */
+    private boolean restorePendingAnchor(Adapter adapter, boolean clamp) {
+        SavedState anchor = mPendingAnchor;
+        int width = getWidth();
+        if (anchor == null || adapter == null || adapter.getItemCount() == 0 || width <= 0
+                || (!clamp && anchor.position >= adapter.getItemCount())) {
+            return false;
+        }
+        mPendingAnchor = null;
+        int position = findAnchorPosition(adapter, anchor);
+        mLayouter.fillWindowFrom(this, adapter, width, position, -anchor.offset, getHeight());
+        CanvasBlock block = mLayouter.firstBlock();
+        int offset = anchor.width == width || anchor.height <= 0 ? anchor.offset
+                : (int) ((long) anchor.offset * block.getHeight() / anchor.height);
+        offset = Math.max(0, Math.min(offset, block.getHeight() - 1));
+        if (offset != anchor.offset) {
+            int dy = anchor.offset - offset;
+            for (int i = 0; i < mLayouter.blockCount(); i++) {
+                mLayouter.blockAt(i).top += dy;
+            }
+            mLayouter.fillWindow(this, adapter, width, 0, getHeight());
+            for (int i = mLayouter.blockCount() - 1; i > 0 && mLayouter.blockAt(i).getTop() >= getHeight(); i--) {
+                detachBlock(adapter, mLayouter.blocks.remove(i));
+            }
+        }
+        if (mLayouter.lastBlock().getBottom() < getHeight() && mLayouter.getLastBlockPosition() == adapter.getItemCount() - 1) {
+            if (!clamp) {
+                //the items which fill the window may still come
+                mPendingAnchor = anchor;
+                return true;
+            }
+            adjustScrollY();
+        }
+        return true;
+    }
+
+    /**
+     * @return the position of the anchor item, looked up by its stable id if the items moved at most
+     * {@link #ANCHOR_SEARCH_DISTANCE} positions, otherwise the saved position
+     */
+    private static int findAnchorPosition(Adapter adapter, SavedState anchor) {
+        int count = adapter.getItemCount();
+        int position = Math.max(0, Math.min(anchor.position, count - 1));
+        if (anchor.stableId == Adapter.NO_ID || adapter.getItemId(position) == anchor.stableId) {
+            return position;
+        }
+        //nearest first, the items usually moved a little
+        for (int d = 1; d <= ANCHOR_SEARCH_DISTANCE && (position - d >= 0 || position + d < count); d++) {
+            if (position + d < count && adapter.getItemId(position + d) == anchor.stableId) {
+                return position + d;
+            }
+            if (position - d >= 0 && adapter.getItemId(position - d) == anchor.stableId) {
+                return position - d;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * the first block of the window: its position, stable id, how far it is scrolled and its size
+     */
+    public static class SavedState extends BaseSavedState {
+        int position = -1;
+        int offset;
+        int height;
+        int width;
+        long stableId = Adapter.NO_ID;
+
+        SavedState(Parcelable superState) {
+            super(superState);
+        }
+
+        SavedState(Parcel in) {
+            super(in);
+            position = in.readInt();
+            offset = in.readInt();
+            height = in.readInt();
+            width = in.readInt();
+            stableId = in.readLong();
+        }
+
+        void copyAnchor(SavedState other) {
+            position = other.position;
+            offset = other.offset;
+            height = other.height;
+            width = other.width;
+            stableId = other.stableId;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            super.writeToParcel(dest, flags);
+            dest.writeInt(position);
+            dest.writeInt(offset);
+            dest.writeInt(height);
+            dest.writeInt(width);
+            dest.writeLong(stableId);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
     }
 
     private final FlingChildXRunnable flingChildXRunnable = new FlingChildXRunnable();
@@ -1788,5 +3285,70 @@ public class CanvasScrollView extends View implements  NestedScrollingChild3, Sc
             ViewCompat.postOnAnimation(CanvasScrollView.this, this);
         }
     }
+
+    private final SmoothScrollRunnable smoothScrollRunnable = new SmoothScrollRunnable();
+    private class SmoothScrollRunnable implements Runnable {
+        private int mLastScrollerY;
+        private int mTargetPosition = -1;
+
+        public void start(int position, int dy) {
+            mTargetPosition = position;
+            mLastScrollerY = 0;
+            mScroller.startScroll(0, 0, 0, dy, computeScrollDuration(dy));
+            setScrollState(SCROLL_STATE_SETTLING);
+            postInvalidateOnAnimation();
+        }
+
+        public void stop() {
+            mTargetPosition = -1;
+            removeCallbacks(this);
+        }
+
+        private void finish() {
+            stop();
+            mScroller.abortAnimation();
+            setScrollState(SCROLL_STATE_IDLE);
+        }
+
+        @Override
+        public void run() {
+            if (mTargetPosition < 0) {
+                return;
+            }
+            final boolean finished = !mScroller.computeScrollOffset();
+            final int y = mScroller.getCurrY();
+            final int dy = y - mLastScrollerY;
+            mLastScrollerY = y;
+
+            CanvasBlock target = getBlockAtPosition(mTargetPosition);
+            if (target != null && (finished || Math.abs(target.getTop()) <= Math.abs(dy)
+                    || Integer.signum(target.getTop()) != Integer.signum(dy))) {
+                //close enough, snap the target to top
+                scrollByInternal(0, target.getTop());
+                adjustScrollY();
+                finish();
+                return;
+            }
+            if (finished) {
+                //the estimated distance was too short
+                int position = mTargetPosition;
+                finish();
+                scrollToPosition(position, 0);
+                return;
+            }
+            if (scrollByInternal(0, dy) != dy) {
+                adjustScrollY();
+                finish();
+                return;
+            }
+            adjustScrollY();
+            postInvalidateOnAnimation();
+        }
+
+        private void postInvalidateOnAnimation() {
+            removeCallbacks(this);
+            ViewCompat.postOnAnimation(CanvasScrollView.this, this);
+        }
+    }
 }
 
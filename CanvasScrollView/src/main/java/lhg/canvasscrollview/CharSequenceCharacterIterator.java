@@ -63,7 +63,7 @@ public class CharSequenceCharacterIterator implements CharacterIterator {
      * @param text The String to be iterated over
      * @since 1.2
      */
-    public void setText(String text) {
+    public void setText(CharSequence text) {
         if (text == null)
             throw new NullPointerException();
         this.text = text;
@@ -0,0 +1,57 @@
+package lhg.canvasscrollview;
+
+import android.os.Process;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * default MeasureScheduler, a small pool of background threads with a bounded queue.
+ * when the queue is full the oldest task is dropped, its block is measured on the main thread.
+ */
+public class ExecutorMeasureScheduler implements CanvasScrollView.MeasureScheduler {
+    private static final int DEFAULT_QUEUE_SIZE = 16;
+    private final ThreadPoolExecutor executor;
+
+    public ExecutorMeasureScheduler() {
+        this(1, DEFAULT_QUEUE_SIZE);
+    }
+
+    public ExecutorMeasureScheduler(int threadCount, int queueSize) {
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+                new LinkedBlockingDeque<Runnable>(queueSize), new MeasureThreadFactory(),
+                new ThreadPoolExecutor.DiscardOldestPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void schedule(CanvasScrollView.MeasureTask task) {
+        executor.execute(task);
+    }
+
+    @Override
+    public void cancelAll() {
+        executor.getQueue().clear();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static class MeasureThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "CanvasScrollView-measure-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package lhg.canvasscrollview;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.Arrays;
+
+/**
+ * time spent by a CanvasScrollView in its phases since the previous frame, and histograms of every
+ * phase over all frames. one instance per view is reused for every frame, nothing is allocated
+ * per frame (except when a new item type is drawn the first time). read it in
+ * {@link CanvasScrollView.MetricsListener#onFrame}, copy what must be kept.
+ *
+ * the phases nest: the replay of invalid layout handlers includes the blocks it creates and measures.
+ * prefetched blocks are counted in the frame after the idle time they were created in.
+ */
+public final class FrameMetrics {
+    /** ensureLayouterValid replaying the queued adapter notifications */
+    public static final int PHASE_REPLAY = 0;
+    /** Adapter.getItem or bindBlock */
+    public static final int PHASE_CREATE = 1;
+    /** Adapter.onMeasureBlock */
+    public static final int PHASE_MEASURE = 2;
+    /** Adapter.onDrawBlock of every block in the window */
+    public static final int PHASE_DRAW = 3;
+    public static final int PHASE_COUNT = 4;
+
+    // systrace section names, keep them stable for trace processing
+    private static final String[] SECTION_NAMES = {"CSV Replay", "CSV Create", "CSV Measure", "CSV Draw"};
+
+    private final long[] phaseNs = new long[PHASE_COUNT];
+    private final int[] phaseCounts = new int[PHASE_COUNT];
+    private final LatencyHistogram[] phaseHistograms = new LatencyHistogram[PHASE_COUNT];
+    private final LatencyHistogram frameHistogram = new LatencyHistogram();
+    private long frameNs = 0;
+    private long frameCount = 0;
+    private int attachedCount = 0;
+    private int detachedCount = 0;
+    // draw time of this frame by item type
+    private int[] drawTypes = new int[4];
+    private long[] drawTypeNs = new long[4];
+    private int[] drawTypeCounts = new int[4];
+    private int drawTypeCount = 0;
+
+    FrameMetrics() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            phaseHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    static void beginSection(int phase) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(SECTION_NAMES[phase]);
+        }
+    }
+
+    static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    void addPhase(int phase, long ns) {
+        phaseNs[phase] += ns;
+        phaseCounts[phase]++;
+    }
+
+    void addDraw(int itemType, long ns) {
+        addPhase(PHASE_DRAW, ns);
+        int i = 0;
+        while (i < drawTypeCount && drawTypes[i] != itemType) {
+            i++;
+        }
+        if (i == drawTypeCount) {
+            if (drawTypeCount == drawTypes.length) {
+                drawTypes = Arrays.copyOf(drawTypes, drawTypeCount * 2);
+                drawTypeNs = Arrays.copyOf(drawTypeNs, drawTypeCount * 2);
+                drawTypeCounts = Arrays.copyOf(drawTypeCounts, drawTypeCount * 2);
+            }
+            drawTypes[i] = itemType;
+            drawTypeNs[i] = 0;
+            drawTypeCounts[i] = 0;
+            drawTypeCount++;
+        }
+        drawTypeNs[i] += ns;
+        drawTypeCounts[i]++;
+    }
+
+    void addAttached() {
+        attachedCount++;
+    }
+
+    void addDetached() {
+        detachedCount++;
+    }
+
+    /**
+     * records this frame into the histograms, called before the listener
+     */
+    void endFrame(long ns) {
+        frameNs = ns;
+        frameCount++;
+        frameHistogram.record(ns);
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            if (phaseCounts[i] > 0) {
+                phaseHistograms[i].record(phaseNs[i]);
+            }
+        }
+    }
+
+    /**
+     * clears the per frame values, called after the listener
+     */
+    void resetFrame() {
+        Arrays.fill(phaseNs, 0);
+        Arrays.fill(phaseCounts, 0);
+        attachedCount = 0;
+        detachedCount = 0;
+        drawTypeCount = 0;
+        frameNs = 0;
+    }
+
+    /**
+     * @return the time of onDraw, the whole frame of the view
+     */
+    public long getFrameNs() {
+        return frameNs;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getPhaseNs(int phase) {
+        return phaseNs[phase];
+    }
+
+    /**
+     * @return how many blocks were created, measured or drawn (1 for a replay)
+     */
+    public int getPhaseCount(int phase) {
+        return phaseCounts[phase];
+    }
+
+    public int getAttachedCount() {
+        return attachedCount;
+    }
+
+    public int getDetachedCount() {
+        return detachedCount;
+    }
+
+    /**
+     * @return the number of item types drawn in this frame, see {@link #getDrawType}
+     */
+    public int getDrawTypeCount() {
+        return drawTypeCount;
+    }
+
+    public int getDrawType(int index) {
+        return drawTypes[index];
+    }
+
+    public long getDrawTypeNs(int index) {
+        return drawTypeNs[index];
+    }
+
+    public int getDrawTypeBlockCount(int index) {
+        return drawTypeCounts[index];
+    }
+
+    /**
+     * @return the time per frame of phase, over the frames it ran in
+     */
+    public LatencyHistogram getPhaseHistogram(int phase) {
+        return phaseHistograms[phase];
+    }
+
+    public LatencyHistogram getFrameHistogram() {
+        return frameHistogram;
+    }
+
+    /**
+     * clears the histograms, e.g. after shipping them
+     */
+    public void resetHistograms() {
+        frameHistogram.reset();
+        for (LatencyHistogram h : phaseHistograms) {
+            h.reset();
+        }
+        frameCount = 0;
+    }
+}
@@ -0,0 +1,213 @@
+package lhg.canvasscrollview;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.text.TextPaint;
+
+import java.util.Arrays;
+
+import lhg.canvasscrollview.blocks.TextBlock;
+
+/**
+ * shows one huge text as a list of TextBlocks, each holding a range of whole paragraphs of about
+ * pieceChars chars, so only the pieces in the window are laid out and kept alive.
+ * a paragraph longer than maxPieceChars is split at a space (or anywhere if it has none).
+ * all pieces share one TextPaint and are recycled. selection offsets are per piece as usual,
+ * {@link #getDocumentOffset} maps them back to the text.
+ */
+public class LargeTextAdapter extends SelectableAdapter<TextBlock> {
+    public static final int DEFAULT_PIECE_CHARS = 1024;
+    private static final int ITEM_TYPE_PIECE = 0;
+
+    private CharSequence text = "";
+    private final TextPaint textPaint;
+    private final int pieceChars;
+    private final int maxPieceChars;
+    // pieceStarts[i] is where piece i starts in text, pieceStarts[pieceCount] is the text length
+    private int[] pieceStarts = new int[]{0};
+    private int pieceCount = 0;
+    private int paddingLeft, paddingTop, paddingRight, paddingBottom;
+
+    public LargeTextAdapter(Context context) {
+        this(context, null, DEFAULT_PIECE_CHARS);
+    }
+
+    /**
+     * @param textPaint shared by every piece, null for the default one of TextBlock
+     */
+    public LargeTextAdapter(Context context, TextPaint textPaint, int pieceChars) {
+        super(context);
+        if (textPaint == null) {
+            textPaint = new TextPaint();
+            textPaint.setTextSize(TextBlock.sp2px(context, 18));
+            textPaint.setColor(Color.BLACK);
+            textPaint.setAntiAlias(true);
+        }
+        this.textPaint = textPaint;
+        this.pieceChars = Math.max(1, pieceChars);
+        this.maxPieceChars = this.pieceChars * 4;
+    }
+
+    /**
+     * padding of every piece
+     */
+    public void setPiecePadding(int left, int top, int right, int bottom) {
+        paddingLeft = left;
+        paddingTop = top;
+        paddingRight = right;
+        paddingBottom = bottom;
+    }
+
+    /**
+     * splits text into pieces, text must not change afterwards, set it again instead
+     */
+    public void setText(CharSequence text) {
+        this.text = text == null ? "" : text;
+        split();
+        notifyDataSetChanged();
+    }
+
+    public CharSequence getText() {
+        return text;
+    }
+
+    public TextPaint getTextPaint() {
+        return textPaint;
+    }
+
+    private void split() {
+        int length = text.length();
+        int[] starts = new int[Math.max(16, length / pieceChars + 2)];
+        int count = 0;
+        int start = 0;
+        while (start < length) {
+            int end = findPieceEnd(start, length);
+            if (count + 2 > starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            starts[count++] = start;
+            start = end;
+        }
+        starts[count] = length;
+        pieceStarts = starts;
+        pieceCount = count;
+    }
+
+    /**
+     * @return the end of the piece starting at start, after a '\n' if possible
+     */
+    private int findPieceEnd(int start, int length) {
+        int limit = Math.min(length, start + maxPieceChars);
+        int lastBreak = -1;
+        for (int i = start; i < limit; i++) {
+            if (text.charAt(i) == '\n') {
+                lastBreak = i + 1;
+                if (lastBreak - start >= pieceChars) {
+                    return lastBreak;
+                }
+            }
+        }
+        if (limit == length) {
+            return length;
+        }
+        if (lastBreak > 0) {
+            return lastBreak;
+        }
+        //one paragraph longer than maxPieceChars
+        for (int i = limit - 1; i > start + pieceChars; i--) {
+            if (Character.isWhitespace(text.charAt(i))) {
+                return i + 1;
+            }
+        }
+        //do not split a surrogate pair
+        return Character.isHighSurrogate(text.charAt(limit - 1)) ? limit - 1 : limit;
+    }
+
+    public int getPieceStart(int position) {
+        return pieceStarts[position];
+    }
+
+    public int getPieceEnd(int position) {
+        return pieceStarts[position + 1];
+    }
+
+    /**
+     * @return the offset in the whole text of offset in the piece of position
+     */
+    public int getDocumentOffset(int position, int offset) {
+        return pieceStarts[position] + offset;
+    }
+
+    /**
+     * @return the piece containing offset of the whole text
+     */
+    public int getPositionForOffset(int offset) {
+        int i = Arrays.binarySearch(pieceStarts, 0, pieceCount + 1, offset);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        return Math.max(0, Math.min(pieceCount - 1, i));
+    }
+
+    @Override
+    public int getItemCount() {
+        return pieceCount;
+    }
+
+    @Override
+    public int getItemType(int position) {
+        return ITEM_TYPE_PIECE;
+    }
+
+    @Override
+    public TextBlock getItem(CanvasScrollView parent, int position) {
+        TextBlock block = onCreateBlock(getPieceText(position));
+        block.setTextPaint(textPaint);
+        block.setPadding(paddingLeft, paddingTop, paddingRight, paddingBottom);
+        return block;
+    }
+
+    /**
+     * override for a TextBlock subclass, the paint and padding are set afterwards
+     */
+    protected TextBlock onCreateBlock(CharSequence pieceText) {
+        return new TextBlock(pieceText);
+    }
+
+    @Override
+    public void bindBlock(CanvasScrollView parent, TextBlock block, int position) {
+        block.setText(getPieceText(position));
+    }
+
+    /**
+     * the piece without the '\n' it ends with, a layout would show it as an empty last line.
+     * offsets in the piece are still offsets from its start
+     */
+    protected CharSequence getPieceText(int position) {
+        int start = pieceStarts[position];
+        int end = pieceStarts[position + 1];
+        if (end > start && text.charAt(end - 1) == '\n') {
+            end--;
+        }
+        return text.subSequence(start, end);
+    }
+
+    /**
+     * the text is immutable, the selection is read on a worker
+     */
+    @Override
+    protected boolean isSelectionTextThreadSafe() {
+        return true;
+    }
+
+    /**
+     * straight from the text, pieces split inside a paragraph are joined without a line break.
+     * a selection to the end of a piece keeps the '\n' getPieceText does not show
+     */
+    @Override
+    protected CharSequence getItemSelectionText(CanvasScrollView parent, int position, int begin, int end) {
+        int start = pieceStarts[position];
+        int pieceEnd = pieceStarts[position + 1];
+        return text.subSequence(Math.min(pieceEnd, start + begin), end < 0 ? pieceEnd : Math.min(pieceEnd, start + end));
+    }
+}
@@ -0,0 +1,103 @@
+package lhg.canvasscrollview;
+
+import java.util.Arrays;
+
+/**
+ * a fixed size log-linear histogram of durations in nanoseconds, 16 buckets per power of two,
+ * so percentiles are within 1/16 of the recorded value. record never allocates.
+ * not thread safe, record and read it on one thread.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 2^40 ns is about 18 minutes, longer values are counted in the last bucket
+    private static final int MAX_EXPONENT = 40;
+
+    private final long[] counts = new long[(MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    public void record(long ns) {
+        if (ns < 0) {
+            ns = 0;
+        }
+        counts[indexOf(ns)]++;
+        count++;
+        sum += ns;
+        max = Math.max(max, ns);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(value));
+        if (exponent == MAX_EXPONENT) {
+            value = Math.min(value, (1L << (MAX_EXPONENT + 1)) - 1);
+        }
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS
+                + (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS - 1 + SUB_BUCKET_BITS;
+        int sub = index % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMaxNs() {
+        return max;
+    }
+
+    public long getMeanNs() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param percentile 0..100, e.g. 50, 95 or 99
+     * @return the duration that percentile of the records are at most, 0 if empty
+     */
+    public long getPercentileNs(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100 * count);
+        rank = Math.max(1, rank);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highestValueOf(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * adds the records of other, e.g. to aggregate several views before reporting
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+}
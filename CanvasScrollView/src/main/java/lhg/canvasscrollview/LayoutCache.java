@@ -0,0 +1,447 @@
+package lhg.canvasscrollview;
+
+import android.graphics.Typeface;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.TextPaint;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * measured block heights of one document kept on disk, keyed by {@link CanvasScrollView.Adapter#getItemId}
+ * and width, so a reopened document knows its height (scroll bar, scrollToPosition) before its
+ * blocks are measured. only the blocks entering the window are measured again.
+ *
+ * the file is a header and entries (id, width, height) sorted by id and width, it is memory mapped
+ * and searched in place. new heights are kept in memory until {@link #flush()}, which
+ * CanvasScrollView calls when it is detached from its window, the file is written on a background
+ * thread. the fingerprint must change with everything that changes the measure besides the width,
+ * see {@link #fingerprint(TextPaint)}; a file of another fingerprint is ignored and overwritten.
+ * main thread only.
+ */
+public class LayoutCache {
+    private static final String TAG = "LayoutCache";
+    private static final int MAGIC = 0x4353564c;
+    private static final int VERSION = 1;
+    // magic, version, document hash, fingerprint, entry count
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+    // id, width, height
+    private static final int ENTRY_SIZE = 8 + 4 + 4;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static Executor sWriteExecutor;
+
+    private final File file;
+    private final long documentHash;
+    private final long fingerprint;
+    private boolean opened = false;
+    private MappedByteBuffer mapped;
+    private int mappedCount = 0;
+    // heights measured since the last flush, by id then width
+    private TreeMap<Long, SparseIntArray> pending = new TreeMap<>();
+    // ids whose mapped heights are stale
+    private HashSet<Long> removed = new HashSet<>();
+    // what the running flush writes, still read by getHeight until the new file is mapped
+    private Flush flushing;
+    private boolean flushAgain = false;
+    // bumped by clear, a running flush does not bring the old heights back
+    private int generation = 0;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param dir         where the cache files are kept, e.g. a directory in Context.getCacheDir()
+     * @param documentId  the document the adapter shows, one file per document
+     * @param fingerprint fonts and paints the blocks are measured with
+     */
+    public LayoutCache(File dir, String documentId, long fingerprint) {
+        this.documentHash = hash(FNV_OFFSET, documentId);
+        this.file = new File(dir, "layout_" + Long.toHexString(documentHash) + ".bin");
+        this.fingerprint = fingerprint;
+    }
+
+    private static synchronized Executor getWriteExecutor() {
+        if (sWriteExecutor == null) {
+            sWriteExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, "CanvasScrollView-layoutcache");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sWriteExecutor;
+    }
+
+    /**
+     * everything of paint that changes where text breaks, custom typefaces can not be told apart
+     * by their style, mix their name in with {@link #fingerprint(long, String)}
+     */
+    public static long fingerprint(TextPaint paint) {
+        long h = FNV_OFFSET;
+        h = mix(h, Float.floatToIntBits(paint.getTextSize()));
+        h = mix(h, Float.floatToIntBits(paint.getTextScaleX()));
+        h = mix(h, Float.floatToIntBits(paint.getTextSkewX()));
+        h = mix(h, paint.getFlags());
+        Typeface typeface = paint.getTypeface();
+        h = mix(h, typeface == null ? -1 : typeface.getStyle());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            h = mix(h, Float.floatToIntBits(paint.getLetterSpacing()));
+            h = hash(h, paint.getFontFeatureSettings());
+        }
+        h = hash(h, String.valueOf(paint.getTextLocale()));
+        return h;
+    }
+
+    public static long fingerprint(long fingerprint, String extra) {
+        return hash(fingerprint, extra);
+    }
+
+    private static long mix(long h, long v) {
+        return (h ^ v) * FNV_PRIME;
+    }
+
+    private static long hash(long h, String s) {
+        if (s == null) {
+            return mix(h, -1);
+        }
+        for (int i = 0; i < s.length(); i++) {
+            h = mix(h, s.charAt(i));
+        }
+        return h;
+    }
+
+    /**
+     * @return the height measured for id at width, -1 if unknown
+     */
+    public int getHeight(long id, int width) {
+        SparseIntArray widths = pending.get(id);
+        if (widths != null) {
+            int h = widths.get(width, -1);
+            if (h >= 0) {
+                return h;
+            }
+        }
+        if (!removed.isEmpty() && removed.contains(id)) {
+            return -1;
+        }
+        if (flushing != null) {
+            return flushing.getHeight(id, width);
+        }
+        ensureOpened();
+        return getMappedHeight(mapped, mappedCount, id, width);
+    }
+
+    public void putHeight(long id, int width, int height) {
+        //a reopened document measures what is cached, nothing to keep then
+        if (getHeight(id, width) == height) {
+            return;
+        }
+        SparseIntArray widths = pending.get(id);
+        if (widths == null) {
+            widths = new SparseIntArray(1);
+            pending.put(id, widths);
+        }
+        widths.put(width, height);
+    }
+
+    /**
+     * drops the heights of id at every width, e.g. when its item changed
+     */
+    public void remove(long id) {
+        pending.remove(id);
+        ensureOpened();
+        if (mappedCount > 0 || flushing != null) {
+            removed.add(id);
+        }
+    }
+
+    /**
+     * drops every height, the file is deleted
+     */
+    public void clear() {
+        pending.clear();
+        removed.clear();
+        mapped = null;
+        mappedCount = 0;
+        opened = true;
+        generation++;
+        flushing = null;
+        flushAgain = false;
+        //after a running flush, on the same thread
+        getWriteExecutor().execute(() -> {
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "can not delete " + file);
+            }
+        });
+    }
+
+    /**
+     * writes the heights measured since the last flush on a background thread, the file is
+     * replaced atomically. the heights stay readable while it is written
+     */
+    public void flush() {
+        if (pending.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        if (flushing != null) {
+            //the running flush maps the file this one merges into
+            flushAgain = true;
+            return;
+        }
+        ensureOpened();
+        final Flush flush = new Flush(pending, removed, mapped, mappedCount);
+        pending = new TreeMap<>();
+        removed = new HashSet<>();
+        flushing = flush;
+        final int gen = generation;
+        getWriteExecutor().execute(() -> {
+            final boolean written = flush.write();
+            mainHandler.post(() -> onFlushed(gen, flush, written));
+        });
+    }
+
+    private void onFlushed(int gen, Flush flush, boolean written) {
+        if (gen != generation || flushing != flush) {
+            return;
+        }
+        flushing = null;
+        if (written) {
+            mapped = flush.result;
+            mappedCount = flush.resultCount;
+        } else {
+            //written again by the next flush, what changed since wins
+            for (Map.Entry<Long, SparseIntArray> e : flush.pending.entrySet()) {
+                if (removed.contains(e.getKey())) {
+                    continue;
+                }
+                SparseIntArray widths = pending.get(e.getKey());
+                if (widths == null) {
+                    pending.put(e.getKey(), e.getValue());
+                    continue;
+                }
+                SparseIntArray flushed = e.getValue();
+                for (int k = 0; k < flushed.size(); k++) {
+                    if (widths.indexOfKey(flushed.keyAt(k)) < 0) {
+                        widths.put(flushed.keyAt(k), flushed.valueAt(k));
+                    }
+                }
+            }
+            removed.addAll(flush.removed);
+        }
+        if (flushAgain) {
+            flushAgain = false;
+            flush();
+        }
+    }
+
+    private void ensureOpened() {
+        if (opened) {
+            return;
+        }
+        opened = true;
+        MappedByteBuffer buffer = map(file, documentHash, fingerprint);
+        if (buffer != null) {
+            mapped = buffer;
+            mappedCount = buffer.getInt(24);
+        }
+    }
+
+    /**
+     * @return the mapped file if it is a cache of this document and fingerprint, null otherwise
+     */
+    private static MappedByteBuffer map(File file, long documentHash, long fingerprint) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            //the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || buffer.getLong(8) != documentHash || buffer.getLong(16) != fingerprint) {
+                return null;
+            }
+            int count = buffer.getInt(24);
+            if (count < 0 || HEADER_SIZE + (long) count * ENTRY_SIZE > buffer.capacity()) {
+                return null;
+            }
+            return buffer;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "can not read " + file, e);
+            return null;
+        }
+    }
+
+    private static long mappedId(MappedByteBuffer mapped, int i) {
+        return mapped.getLong(HEADER_SIZE + i * ENTRY_SIZE);
+    }
+
+    private static int mappedWidth(MappedByteBuffer mapped, int i) {
+        return mapped.getInt(HEADER_SIZE + i * ENTRY_SIZE + 8);
+    }
+
+    private static int mappedHeight(MappedByteBuffer mapped, int i) {
+        return mapped.getInt(HEADER_SIZE + i * ENTRY_SIZE + 12);
+    }
+
+    private static int compareMapped(MappedByteBuffer mapped, int i, long id, int width) {
+        int c = Long.compare(mappedId(mapped, i), id);
+        return c != 0 ? c : Integer.compare(mappedWidth(mapped, i), width);
+    }
+
+    /**
+     * @return the height of id at width in the mapped file, -1 if it has none
+     */
+    private static int getMappedHeight(MappedByteBuffer mapped, int mappedCount, long id, int width) {
+        int lo = 0, hi = mappedCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareMapped(mapped, mid, id, width);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mappedHeight(mapped, mid);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * the heights of one flush, merged with the mapped file into a new file on the write thread.
+     * nothing of it is changed after it is created, so the main thread reads it meanwhile
+     */
+    private final class Flush {
+        final TreeMap<Long, SparseIntArray> pending;
+        final HashSet<Long> removed;
+        final MappedByteBuffer base;
+        final int baseCount;
+        MappedByteBuffer result;
+        int resultCount;
+
+        Flush(TreeMap<Long, SparseIntArray> pending, HashSet<Long> removed, MappedByteBuffer base, int baseCount) {
+            this.pending = pending;
+            this.removed = removed;
+            this.base = base;
+            this.baseCount = baseCount;
+        }
+
+        int getHeight(long id, int width) {
+            SparseIntArray widths = pending.get(id);
+            if (widths != null) {
+                int h = widths.get(width, -1);
+                if (h >= 0) {
+                    return h;
+                }
+            }
+            if (removed.contains(id)) {
+                return -1;
+            }
+            return getMappedHeight(base, baseCount, id, width);
+        }
+
+        /**
+         * @return true if the file is replaced and mapped into result
+         */
+        boolean write() {
+            int count = mergedCount();
+            File tmp = new File(file.getPath() + ".tmp");
+            File dir = file.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                Log.w(TAG, "can not create " + dir);
+                return false;
+            }
+            long length = HEADER_SIZE + (long) count * ENTRY_SIZE;
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                //a stale tmp file of a failed flush may be longer
+                raf.setLength(length);
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+                out.order(ByteOrder.LITTLE_ENDIAN);
+                out.putInt(MAGIC).putInt(VERSION).putLong(documentHash).putLong(fingerprint).putInt(count);
+                writeMerged(out);
+                out.force();
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "can not write " + tmp, e);
+                tmp.delete();
+                return false;
+            }
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "can not replace " + file);
+                tmp.delete();
+                return false;
+            }
+            result = map(file, documentHash, fingerprint);
+            resultCount = result == null ? 0 : count;
+            return true;
+        }
+
+        /**
+         * @return whether the base entry i is replaced by a pending one or removed
+         */
+        private boolean isBaseDropped(int i) {
+            long id = mappedId(base, i);
+            if (removed.contains(id)) {
+                return true;
+            }
+            SparseIntArray widths = pending.get(id);
+            return widths != null && widths.indexOfKey(mappedWidth(base, i)) >= 0;
+        }
+
+        private int mergedCount() {
+            int count = 0;
+            for (SparseIntArray widths : pending.values()) {
+                count += widths.size();
+            }
+            for (int i = 0; i < baseCount; i++) {
+                if (!isBaseDropped(i)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * both sources are sorted by id and width, so they are merged in one pass
+         */
+        private void writeMerged(MappedByteBuffer out) {
+            int i = 0;
+            for (Map.Entry<Long, SparseIntArray> e : pending.entrySet()) {
+                long id = e.getKey();
+                SparseIntArray widths = e.getValue();
+                for (int k = 0; k < widths.size(); k++) {
+                    int width = widths.keyAt(k);
+                    for (; i < baseCount && compareMapped(base, i, id, width) < 0; i++) {
+                        writeBase(out, i);
+                    }
+                    out.putLong(id).putInt(width).putInt(widths.valueAt(k));
+                }
+            }
+            for (; i < baseCount; i++) {
+                writeBase(out, i);
+            }
+        }
+
+        private void writeBase(MappedByteBuffer out, int i) {
+            if (!isBaseDropped(i)) {
+                out.putLong(mappedId(base, i)).putInt(mappedWidth(base, i)).putInt(mappedHeight(base, i));
+            }
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package lhg.canvasscrollview;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.TextPaint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lhg.canvasscrollview.blocks.TextBlock;
+
+/**
+ * shows a plain text file of any size without reading it into the heap. the file is memory mapped,
+ * one background pass splits it into pieces of whole lines of about pieceBytes bytes and keeps only
+ * the byte offset of every piece (8 bytes per piece), the text of a piece is decoded when its
+ * TextBlock is bound. like {@link LargeTextAdapter} a line longer than maxPieceBytes is split,
+ * after a space or between two UTF-8 characters.
+ *
+ * with {@link #setStreaming} the pieces are inserted at the tail while the file is indexed.
+ *
+ * the charset must encode '\n' as the single byte 10 and never use that byte inside a character
+ * (UTF-8, ASCII, the ISO-8859 family, GBK...), UTF-16 and UTF-32 are rejected.
+ */
+public class MappedTextAdapter extends SelectableAdapter<TextBlock> {
+    public static final int DEFAULT_PIECE_BYTES = 4096;
+    private static final int ITEM_TYPE_PIECE = 0;
+    // pieces are decoded from mappings of REGION_STEP + maxPieceBytes, so every piece fits in one
+    private static final long REGION_STEP = 64L << 20;
+    private static final int MAX_MAPPED_REGIONS = 4;
+    private static final int SCAN_BUFFER = 64 * 1024;
+    // pieces per streamed batch, adapted so that inserting a batch stays under FRAME_BUDGET_NS
+    private static final int MIN_BATCH_PIECES = 64;
+    private static final int MAX_BATCH_PIECES = 64 * 1024;
+    private static final long FRAME_BUDGET_NS = 4_000_000;
+
+    public interface Callback {
+        void onIndexed(MappedTextAdapter adapter, int pieceCount, long length);
+
+        void onFailed(MappedTextAdapter adapter, IOException e);
+    }
+
+    private static Executor sIndexExecutor;
+
+    private final TextPaint textPaint;
+    private final int pieceBytes;
+    private final int maxPieceBytes;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private Charset charset;
+    // guards file, the mapped regions and pieceStarts, the copy worker reads pieces while close can run
+    private final Object fileLock = new Object();
+    private RandomAccessFile file;
+    private long length = 0;
+    // pieceStarts[i] is the byte offset of piece i, pieceStarts[pieceCount] is the file length
+    private long[] pieceStarts = new long[]{0};
+    private int pieceCount = 0;
+    // a small LRU of mapped regions, bounds the address space on 32 bit devices
+    private final int[] regionIndexes = new int[MAX_MAPPED_REGIONS];
+    private final MappedByteBuffer[] regions = new MappedByteBuffer[MAX_MAPPED_REGIONS];
+    private final long[] regionUses = new long[MAX_MAPPED_REGIONS];
+    private long regionClock = 0;
+    // a new open makes the running index stale
+    private volatile int generation = 0;
+    private int paddingLeft, paddingTop, paddingRight, paddingBottom;
+    private boolean streaming = false;
+    // streamed pieces are still to come
+    private boolean appending = false;
+    private volatile int batchPieces = MIN_BATCH_PIECES;
+    // a posted batch not inserted yet, the indexer adds to the next one meanwhile
+    private final AtomicBoolean batchPending = new AtomicBoolean();
+
+    public MappedTextAdapter(Context context) {
+        this(context, null, DEFAULT_PIECE_BYTES);
+    }
+
+    /**
+     * @param textPaint shared by every piece, null for the default one of TextBlock
+     */
+    public MappedTextAdapter(Context context, TextPaint textPaint, int pieceBytes) {
+        super(context);
+        if (textPaint == null) {
+            textPaint = new TextPaint();
+            textPaint.setTextSize(TextBlock.sp2px(context, 18));
+            textPaint.setColor(Color.BLACK);
+            textPaint.setAntiAlias(true);
+        }
+        this.textPaint = textPaint;
+        this.pieceBytes = Math.max(1, pieceBytes);
+        this.maxPieceBytes = this.pieceBytes * 4;
+    }
+
+    private static synchronized Executor getDefaultExecutor() {
+        if (sIndexExecutor == null) {
+            sIndexExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, "CanvasScrollView-index");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sIndexExecutor;
+    }
+
+    /**
+     * padding of every piece
+     */
+    public void setPiecePadding(int left, int top, int right, int bottom) {
+        paddingLeft = left;
+        paddingTop = top;
+        paddingRight = right;
+        paddingBottom = bottom;
+    }
+
+    public TextPaint getTextPaint() {
+        return textPaint;
+    }
+
+    /**
+     * insert the pieces while the file is indexed, the first screen is shown after the first
+     * batch and the scroll range grows with every batch. batches are coalesced while one waits
+     * for the main thread, their size adapts so that replaying an insert takes a fraction of a frame.
+     * applies to the next {@link #open}, off by default
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * true from a streaming {@link #open} until the last batch of pieces is inserted
+     */
+    @Override
+    public boolean isAppending() {
+        return appending;
+    }
+
+    /**
+     * closes the current file and indexes path on a background thread, the pieces are shown
+     * when the index is built, or while it is built if streaming. the file must not change while it is open
+     */
+    public void open(File path, Charset charset, Callback callback) {
+        byte[] newline = "\n".getBytes(charset);
+        if (newline.length != 1 || newline[0] != '\n') {
+            throw new IllegalArgumentException(charset + " does not encode '\\n' as one byte");
+        }
+        close();
+        this.charset = charset;
+        final int gen = generation;
+        final boolean stream = streaming;
+        appending = stream;
+        batchPieces = MIN_BATCH_PIECES;
+        batchPending.set(false);
+        getDefaultExecutor().execute(() -> {
+            RandomAccessFile raf = null;
+            boolean posted = false;
+            try {
+                raf = new RandomAccessFile(path, "r");
+                final RandomAccessFile opened = raf;
+                final long fileLength = raf.length();
+                //the main thread owns it from now on, it closes it if gen is stale
+                mainHandler.post(() -> onOpened(gen, opened, fileLength));
+                posted = true;
+                final long[] starts = index(raf.getChannel(), charset, gen, stream);
+                if (starts != null) {
+                    mainHandler.post(() -> onIndexed(gen, stream ? null : starts, callback));
+                }
+            } catch (IOException e) {
+                if (!posted) {
+                    closeQuietly(raf);
+                }
+                mainHandler.post(() -> {
+                    if (gen != generation) {
+                        return;
+                    }
+                    appending = false;
+                    if (callback != null) {
+                        callback.onFailed(this, e);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onOpened(int gen, RandomAccessFile raf, long fileLength) {
+        if (gen != generation) {
+            closeQuietly(raf);
+            return;
+        }
+        synchronized (fileLock) {
+            file = raf;
+            length = fileLength;
+        }
+    }
+
+    /**
+     * @param starts null if they were streamed
+     */
+    private void onIndexed(int gen, long[] starts, Callback callback) {
+        if (gen != generation) {
+            return;
+        }
+        //no final batch is posted for an empty file
+        appending = false;
+        if (starts != null) {
+            synchronized (fileLock) {
+                pieceStarts = starts;
+            }
+            pieceCount = starts.length - 1;
+            notifyDataSetChanged();
+        }
+        if (callback != null) {
+            callback.onIndexed(this, pieceCount, length);
+        }
+    }
+
+    /**
+     * closes the file, the adapter is empty afterwards
+     */
+    public void close() {
+        generation++;
+        appending = false;
+        synchronized (fileLock) {
+            closeQuietly(file);
+            file = null;
+            length = 0;
+            Arrays.fill(regions, null);
+            pieceStarts = new long[]{0};
+        }
+        if (pieceCount > 0) {
+            pieceCount = 0;
+            notifyDataSetChanged();
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * called on the index thread, one pass over the file in mapped regions
+     *
+     * @return the piece starts followed by the length, null if gen became stale
+     */
+    private long[] index(FileChannel channel, Charset charset, int gen, boolean stream) throws IOException {
+        long fileLength = channel.size();
+        boolean utf8 = "UTF-8".equals(charset.name());
+        long[] starts = new long[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(16, fileLength / pieceBytes + 2))];
+        int count = 0;
+        // pieces before it are inserted or posted
+        int published = 0;
+        byte[] scan = new byte[SCAN_BUFFER];
+        long pieceStart = 0;
+        // the candidate ends of the current piece, -1 if none
+        long lastBreak = -1, lastSpace = -1, lastBoundary = -1;
+        for (long regionStart = 0; regionStart < fileLength; regionStart += REGION_STEP) {
+            if (gen != generation) {
+                return null;
+            }
+            long regionLength = Math.min(REGION_STEP, fileLength - regionStart);
+            ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionLength);
+            while (region.hasRemaining()) {
+                long base = regionStart + region.position();
+                int n = Math.min(scan.length, region.remaining());
+                region.get(scan, 0, n);
+                for (int i = 0; i < n; i++) {
+                    long p = base + i;
+                    byte b = scan[i];
+                    if (utf8 && (b & 0xC0) != 0x80) {
+                        lastBoundary = p;
+                    }
+                    long end = -1;
+                    if (b == '\n') {
+                        lastBreak = p + 1;
+                        if (lastBreak - pieceStart >= pieceBytes) {
+                            end = lastBreak;
+                        }
+                    } else if (b == ' ' && p >= pieceStart + pieceBytes) {
+                        lastSpace = p + 1;
+                    }
+                    if (end < 0 && p + 1 - pieceStart >= maxPieceBytes) {
+                        end = lastBreak > pieceStart ? lastBreak
+                                : lastSpace > pieceStart ? lastSpace
+                                : lastBoundary > pieceStart ? lastBoundary : p + 1;
+                    }
+                    if (end > 0) {
+                        if (count + 2 > starts.length) {
+                            starts = Arrays.copyOf(starts, starts.length * 2);
+                        }
+                        starts[count++] = pieceStart;
+                        pieceStart = end;
+                        lastBreak = lastSpace = lastBoundary = -1;
+                    }
+                }
+                //the last piece is held back, so the final batch is empty only for an empty file
+                if (stream && count > 0) {
+                    published = publish(starts, published, count - 1, starts[count - 1], gen, false);
+                }
+            }
+        }
+        if (pieceStart < fileLength) {
+            if (count + 2 > starts.length) {
+                starts = Arrays.copyOf(starts, count + 2);
+            }
+            starts[count++] = pieceStart;
+        }
+        starts[count] = fileLength;
+        if (stream) {
+            publish(starts, published, count, fileLength, gen, true);
+        }
+        return Arrays.copyOf(starts, count + 1);
+    }
+
+    /**
+     * posts the pieces of [from, count) to be inserted, unless they are fewer than a batch or
+     * the previous batch is still pending
+     *
+     * @param end   the end of the last piece
+     * @param force true for the final batch
+     * @return the first piece not posted
+     */
+    private int publish(long[] starts, int from, int count, long end, int gen, boolean force) {
+        if (count == from || (!force && (count - from < batchPieces || batchPending.get()))) {
+            return from;
+        }
+        final long[] batch = Arrays.copyOfRange(starts, from, count + 1);
+        batch[count - from] = end;
+        batchPending.set(true);
+        mainHandler.post(() -> onBatch(gen, batch, force));
+        return count;
+    }
+
+    /**
+     * appends the pieces of batch (its last element is the end of the last one) at the tail
+     */
+    private void onBatch(int gen, long[] batch, boolean last) {
+        batchPending.set(false);
+        if (gen != generation) {
+            return;
+        }
+        if (last) {
+            //a restored scroll position may be clamped to the end by this insert
+            appending = false;
+        }
+        long start = System.nanoTime();
+        int n = batch.length - 1;
+        synchronized (fileLock) {
+            if (pieceCount + n + 1 > pieceStarts.length) {
+                pieceStarts = Arrays.copyOf(pieceStarts, Math.max(pieceStarts.length * 2, pieceCount + n + 1));
+            }
+            System.arraycopy(batch, 0, pieceStarts, pieceCount, n + 1);
+        }
+        int positionStart = pieceCount;
+        pieceCount += n;
+        notifyItemRangeInserted(positionStart, n);
+        CanvasScrollView scrollView = getCanvasScrollView();
+        if (scrollView != null) {
+            //replays the insert now, so its cost is part of the measured time
+            scrollView.applyPendingUpdates();
+        }
+        long took = System.nanoTime() - start;
+        if (took > FRAME_BUDGET_NS) {
+            batchPieces = Math.max(MIN_BATCH_PIECES, batchPieces / 2);
+        } else if (took < FRAME_BUDGET_NS / 4) {
+            batchPieces = Math.min(MAX_BATCH_PIECES, batchPieces * 2);
+        }
+    }
+
+    /**
+     * called with fileLock held
+     *
+     * @return the mapping of REGION_STEP + maxPieceBytes bytes (as far as the file goes) at index * REGION_STEP
+     */
+    private MappedByteBuffer region(int index) throws IOException {
+        int lru = 0;
+        for (int i = 0; i < MAX_MAPPED_REGIONS; i++) {
+            if (regions[i] != null && regionIndexes[i] == index) {
+                regionUses[i] = ++regionClock;
+                return regions[i];
+            }
+            if (regions[i] == null || (regions[lru] != null && regionUses[i] < regionUses[lru])) {
+                lru = i;
+            }
+        }
+        long start = index * REGION_STEP;
+        long size = Math.min(REGION_STEP + maxPieceBytes, length - start);
+        MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, start, size);
+        regions[lru] = buffer;
+        regionIndexes[lru] = index;
+        regionUses[lru] = ++regionClock;
+        return buffer;
+    }
+
+    public long getPieceStart(int position) {
+        return pieceStarts[position];
+    }
+
+    public long getPieceEnd(int position) {
+        return pieceStarts[position + 1];
+    }
+
+    /**
+     * @return the piece containing the byte offset of the file
+     */
+    public int getPositionForByteOffset(long offset) {
+        int i = Arrays.binarySearch(pieceStarts, 0, pieceCount + 1, offset);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        return Math.max(0, Math.min(pieceCount - 1, i));
+    }
+
+    @Override
+    public int getItemCount() {
+        return pieceCount;
+    }
+
+    @Override
+    public int getItemType(int position) {
+        return ITEM_TYPE_PIECE;
+    }
+
+    /**
+     * the byte offset of the piece, stable as long as the file does not change
+     */
+    @Override
+    public long getItemId(int position) {
+        return pieceStarts[position];
+    }
+
+    @Override
+    public TextBlock getItem(CanvasScrollView parent, int position) {
+        TextBlock block = onCreateBlock(getPieceText(position));
+        block.setTextPaint(textPaint);
+        block.setPadding(paddingLeft, paddingTop, paddingRight, paddingBottom);
+        return block;
+    }
+
+    /**
+     * override for a TextBlock subclass, the paint and padding are set afterwards
+     */
+    protected TextBlock onCreateBlock(CharSequence pieceText) {
+        return new TextBlock(pieceText);
+    }
+
+    @Override
+    public void bindBlock(CanvasScrollView parent, TextBlock block, int position) {
+        block.setText(getPieceText(position));
+    }
+
+    /**
+     * the piece without the '\n' it ends with, a layout would show it as an empty last line.
+     * offsets in the piece are still offsets from its start. a failed read shows an empty piece
+     */
+    protected CharSequence getPieceText(int position) {
+        byte[] bytes = readPiece(position);
+        if (bytes == null) {
+            return "";
+        }
+        int size = bytes.length;
+        if (size > 0 && bytes[size - 1] == '\n') {
+            size--;
+        }
+        return new String(bytes, 0, size, charset);
+    }
+
+    /**
+     * copies the bytes of the piece out of its mapping, so a close on the ui thread can not
+     * unmap them while the copy worker decodes
+     *
+     * @return null if the file is closed or the read failed
+     */
+    private byte[] readPiece(int position) {
+        synchronized (fileLock) {
+            if (file == null || position < 0 || position + 1 >= pieceStarts.length) {
+                return null;
+            }
+            long start = pieceStarts[position];
+            int size = (int) (pieceStarts[position + 1] - start);
+            int index = (int) (start / REGION_STEP);
+            byte[] bytes = new byte[size];
+            try {
+                ByteBuffer buffer = region(index).duplicate();
+                buffer.position((int) (start - index * REGION_STEP));
+                buffer.get(bytes, 0, size);
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * pieces are read under a lock and decoded from a private copy, the selection is read on a worker
+     */
+    @Override
+    protected boolean isSelectionTextThreadSafe() {
+        return true;
+    }
+
+    /**
+     * a selection to the end of a piece keeps the '\n' getPieceText does not show
+     */
+    @Override
+    protected CharSequence getItemSelectionText(CanvasScrollView parent, int position, int begin, int end) {
+        byte[] bytes = readPiece(position);
+        if (bytes == null) {
+            return "";
+        }
+        String text = new String(bytes, charset);
+        int length = text.length();
+        return text.subSequence(Math.min(length, begin), end < 0 ? length : Math.min(length, end));
+    }
+}
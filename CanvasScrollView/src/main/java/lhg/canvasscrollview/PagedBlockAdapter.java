@@ -0,0 +1,314 @@
+package lhg.canvasscrollview;
+
+import android.graphics.Canvas;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * an adapter over a data source too big to load at once. items are loaded in pages of pageSize on a
+ * background executor, the pages of the window and the next ones in the scroll direction first.
+ * until its page arrives an item is a {@link PlaceholderBlock} of the estimated block height, then
+ * its range is notified as changed and the real block is bound. loaded pages are kept in an LRU
+ * cache of maxSize (pages by default, see {@link #sizeOfPage}), pages far from the window are dropped
+ * and loaded again when needed. a failed load is tried again later while its page is near the window.
+ *
+ * <pre>
+ * setDataSource((start, count) -> archive.readEntries(start, count), archive.getEntryCount());
+ * </pre>
+ */
+public abstract class PagedBlockAdapter<T> extends CanvasScrollView.Adapter<CanvasScrollView.CanvasBlock> {
+    private static final String TAG = "PagedBlockAdapter";
+    public static final int ITEM_TYPE_PLACEHOLDER = Integer.MIN_VALUE;
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int DEFAULT_MAX_PAGES = 20;
+    // placeholder height before anything is measured
+    private static final int DEFAULT_PLACEHOLDER_HEIGHT = 100;
+    // a failed page is loaded again after this, doubled for every failure in a row
+    private static final long RETRY_DELAY_MS = 500;
+    private static final long MAX_RETRY_DELAY_MS = 30_000;
+
+    public interface DataSource<T> {
+        /**
+         * called on the executor
+         *
+         * @return the items of [start, start + count), fewer only at the end of the data
+         */
+        List<T> loadPage(int start, int count) throws Exception;
+    }
+
+    private static Executor sPageExecutor;
+
+    private final int pageSize;
+    private final Executor executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<Integer, List<T>> pages;
+    private final SparseBooleanArray loading = new SparseBooleanArray();
+    // failures in a row by page
+    private final SparseIntArray failures = new SparseIntArray();
+    private DataSource<T> dataSource;
+    private int itemCount = 0;
+    // a new data source makes the running loads stale
+    private int generation = 0;
+    private int scrollDirection = 1;
+    private int prefetchPages = 1;
+
+    public PagedBlockAdapter() {
+        this(DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES, getDefaultExecutor());
+    }
+
+    /**
+     * @param maxSize the budget of loaded pages, in the unit of {@link #sizeOfPage}
+     */
+    public PagedBlockAdapter(int pageSize, int maxSize, Executor executor) {
+        this.pageSize = Math.max(1, pageSize);
+        this.executor = executor;
+        this.pages = new LruCache<Integer, List<T>>(Math.max(1, maxSize)) {
+            @Override
+            protected int sizeOf(Integer key, List<T> value) {
+                return sizeOfPage(value);
+            }
+        };
+    }
+
+    private static synchronized Executor getDefaultExecutor() {
+        if (sPageExecutor == null) {
+            sPageExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, "CanvasScrollView-paging");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sPageExecutor;
+    }
+
+    /**
+     * @param itemCount the number of items of source, it must be known before they are loaded
+     */
+    public void setDataSource(DataSource<T> source, int itemCount) {
+        this.dataSource = source;
+        this.itemCount = source == null ? 0 : Math.max(0, itemCount);
+        generation++;
+        pages.evictAll();
+        loading.clear();
+        failures.clear();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * how many pages beyond the window are loaded in the scroll direction, 1 by default
+     */
+    public void setPrefetchPages(int prefetchPages) {
+        this.prefetchPages = Math.max(0, prefetchPages);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * the size of a loaded page in the unit of maxSize, 1 by default (maxSize counts pages),
+     * override it to budget by memory
+     */
+    protected int sizeOfPage(List<T> page) {
+        return 1;
+    }
+
+    /**
+     * @return the item at position if its page is loaded, null otherwise (no load is started)
+     */
+    public T peekItem(int position) {
+        if (position < 0 || position >= itemCount) {
+            return null;
+        }
+        List<T> page = pages.get(position / pageSize);
+        int index = position % pageSize;
+        return page == null || index >= page.size() ? null : page.get(index);
+    }
+
+    /**
+     * the item type of a loaded item, not {@link #ITEM_TYPE_PLACEHOLDER}
+     */
+    protected int getLoadedItemType(T item, int position) {
+        return 0;
+    }
+
+    /**
+     * the stable id of a loaded item, see {@link CanvasScrollView.Adapter#getItemId}. NO_ID by default
+     */
+    protected long getLoadedItemId(T item, int position) {
+        return NO_ID;
+    }
+
+    /**
+     * NO_ID while the page of position is not loaded, a placeholder has no identity
+     */
+    @Override
+    public final long getItemId(int position) {
+        T item = peekItem(position);
+        return item == null ? NO_ID : getLoadedItemId(item, position);
+    }
+
+    protected abstract CanvasScrollView.CanvasBlock onCreateBlock(CanvasScrollView parent, int itemType);
+
+    protected abstract void onBindBlock(CanvasScrollView parent, CanvasScrollView.CanvasBlock block, T item, int position);
+
+    @Override
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    @Override
+    public int getItemType(int position) {
+        T item = peekItem(position);
+        return item == null ? ITEM_TYPE_PLACEHOLDER : getLoadedItemType(item, position);
+    }
+
+    @Override
+    public CanvasScrollView.CanvasBlock getItem(CanvasScrollView parent, int position) {
+        T item = peekItem(position);
+        if (item == null) {
+            PlaceholderBlock block = new PlaceholderBlock();
+            bindPlaceholder(parent, block, position);
+            return block;
+        }
+        CanvasScrollView.CanvasBlock block = onCreateBlock(parent, getLoadedItemType(item, position));
+        onBindBlock(parent, block, item, position);
+        return block;
+    }
+
+    @Override
+    public void bindBlock(CanvasScrollView parent, CanvasScrollView.CanvasBlock block, int position) {
+        if (block instanceof PlaceholderBlock) {
+            bindPlaceholder(parent, (PlaceholderBlock) block, position);
+            return;
+        }
+        T item = peekItem(position);
+        if (item != null) {
+            onBindBlock(parent, block, item, position);
+        }
+    }
+
+    private void bindPlaceholder(CanvasScrollView parent, PlaceholderBlock block, int position) {
+        int estimated = parent.getEstimatedBlockHeight();
+        block.estimatedHeight = estimated > 0 ? estimated : DEFAULT_PLACEHOLDER_HEIGHT;
+        loadPage(position / pageSize);
+    }
+
+    @Override
+    public void onScrolled(CanvasScrollView scrollView, int dx, int dy) {
+        super.onScrolled(scrollView, dx, dy);
+        if (dy != 0) {
+            scrollDirection = dy > 0 ? 1 : -1;
+        }
+        int first = scrollView.getFirstVisiblePosition();
+        int last = scrollView.getLastVisiblePosition();
+        if (last < first) {
+            return;
+        }
+        int firstPage = first / pageSize;
+        int lastPage = last / pageSize;
+        //the window first, then ahead in the scroll direction
+        if (scrollDirection > 0) {
+            for (int p = firstPage; p <= lastPage + prefetchPages; p++) {
+                loadPage(p);
+            }
+        } else {
+            for (int p = lastPage; p >= firstPage - prefetchPages; p--) {
+                loadPage(p);
+            }
+        }
+    }
+
+    private void loadPage(int page) {
+        final int start = page * pageSize;
+        if (dataSource == null || page < 0 || start >= itemCount || loading.get(page) || pages.get(page) != null) {
+            return;
+        }
+        loading.put(page, true);
+        final DataSource<T> source = dataSource;
+        final int gen = generation;
+        final int count = Math.min(pageSize, itemCount - start);
+        executor.execute(() -> {
+            List<T> items = null;
+            try {
+                items = source.loadPage(start, count);
+            } catch (Exception e) {
+                Log.w(TAG, "loading page " + page + " failed", e);
+            }
+            final List<T> result = items;
+            mainHandler.post(() -> onPageLoaded(gen, page, result));
+        });
+    }
+
+    private void onPageLoaded(int gen, int page, List<T> items) {
+        if (gen != generation) {
+            return;
+        }
+        loading.delete(page);
+        if (items == null) {
+            int failed = failures.get(page) + 1;
+            failures.put(page, failed);
+            long delay = Math.min(MAX_RETRY_DELAY_MS, RETRY_DELAY_MS << Math.min(failed - 1, 16));
+            mainHandler.postDelayed(() -> {
+                if (gen == generation && isPageNearWindow(page)) {
+                    loadPage(page);
+                }
+            }, delay);
+            return;
+        }
+        failures.delete(page);
+        pages.put(page, items);
+        int start = page * pageSize;
+        notifyItemRangeChanged(start, Math.min(pageSize, itemCount - start));
+    }
+
+    /**
+     * a page which left the window is loaded again when it is bound or scrolled to
+     */
+    private boolean isPageNearWindow(int page) {
+        CanvasScrollView scrollView = getCanvasScrollView();
+        if (scrollView == null) {
+            return false;
+        }
+        int first = scrollView.getFirstVisiblePosition();
+        int last = scrollView.getLastVisiblePosition();
+        if (last < first) {
+            return false;
+        }
+        return page >= first / pageSize - prefetchPages && page <= last / pageSize + prefetchPages;
+    }
+
+    /**
+     * stands for an item whose page is not loaded yet, empty and of the estimated block height
+     */
+    public static class PlaceholderBlock extends CanvasScrollView.CanvasBlock {
+        int estimatedHeight;
+
+        @Override
+        public void onMeasure(CanvasScrollView parent, int parentWidth, boolean horizontalScrollable) {
+            setWidth(parentWidth);
+            setHeight(estimatedHeight);
+        }
+
+        @Override
+        public void onDraw(CanvasScrollView parent, Canvas canvas, int left, int top, int right, int bottom) {
+        }
+
+        @Override
+        public boolean isHeightEstimated() {
+            return true;
+        }
+    }
+}
@@ -8,9 +8,16 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Process;
 import android.view.View;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 /**
  * 2021.07.15 lhg
  * @param <T>
@@ -20,6 +27,16 @@ public abstract class SelectableAdapter<T extends CanvasScrollView.CanvasBlock>
     SelectionHandle2 handle1, handle2;
     Paint selectPaint;
     SelectionMenu selectionMenu;
+    SelectionExporter copyExporter;
+
+    //selections up to this many items are copied on the ui thread
+    private static final int SYNC_COPY_MAX_ITEMS = 256;
+    //longer copies are spilled to a file in the cache dir, or fail without a copy uri
+    private static final int MAX_INLINE_COPY_CHARS = 512 * 1024;
+    private static final String SPILL_FILE_PREFIX = "canvasscrollview-selection-";
+    //items copied per main thread message when getItemSelectionText is not thread safe
+    private static final int MAIN_COPY_CHUNK_ITEMS = 64;
+    private static Executor sCopyExecutor;
 
     int[] tmpInts2 = new int[2];
 
@@ -162,6 +179,12 @@ public abstract class SelectableAdapter<T extends CanvasScrollView.CanvasBlock>
         return true;
     }
 
+    @Override
+    public void onAdapterDetachedFromScollView(CanvasScrollView scrollView) {
+        super.onAdapterDetachedFromScollView(scrollView);
+        cancelCopySelection();
+    }
+
     @Override
     public void onScrollStateChanged(CanvasScrollView scrollView, int newState) {
         super.onScrollStateChanged(scrollView, newState);
@@ -471,23 +494,29 @@ public abstract class SelectableAdapter<T extends CanvasScrollView.CanvasBlock>
         }
         SelectPoint beginPoint = getSelectionBegin().point;
         SelectPoint endPoint = getSelectionEnd().point;
-        StringBuilder sb = new StringBuilder();
         int i1 = Math.max(0 , beginPoint.position);
         int i2 = Math.min(getItemCount(), endPoint.position + 1);
-        for (int i = i1; i < i2; i++) {
-            CanvasScrollView.CanvasBlock block = getItem(scrollView, i);
-            if (block instanceof Selectable) {
-                int offset1 = beginPoint.position < block.getPosition() ? 0 : beginPoint.offset;
-                int offset2 = endPoint.position > block.getPosition() ? ((Selectable) block).getSelectableSize() : endPoint.offset;
-                sb.append(((Selectable) block).getSelectionText(offset1, offset2));
-            }
-        }
-        try {
-            ClipboardManager cmb = (ClipboardManager) scrollView.getContext().getSystemService(Context.CLIPBOARD_SERVICE);
-            cmb.setPrimaryClip(ClipData.newPlainText(null, sb.toString()));
-        } catch (Exception e) {
-            e.printStackTrace();
-            Toast.makeText(scrollView.getContext(), e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+
+        cancelCopySelection();
+        final Context context = scrollView.getContext().getApplicationContext();
+        deleteSpillFiles(context);
+        //without a uri for the spilled file a copy longer than MAX_INLINE_COPY_CHARS fails
+        File spillFile = isCopyUriSupported()
+                ? new File(context.getCacheDir(), SPILL_FILE_PREFIX + System.currentTimeMillis() + ".txt") : null;
+        SelectionExporter exporter = new SelectionExporter(
+                (position, begin, end) -> getItemSelectionText(scrollView, position, begin, end),
+                new CopyCallback(context), i1, i2,
+                beginPoint.position, beginPoint.offset, endPoint.position, endPoint.offset,
+                spillFile, MAX_INLINE_COPY_CHARS);
+        if (i2 - i1 <= SYNC_COPY_MAX_ITEMS) {
+            exporter.run();
+        } else if (isSelectionTextThreadSafe()) {
+            //a huge selection, stream it on a worker
+            copyExporter = exporter;
+            getCopyExecutor().execute(exporter);
+        } else {
+            copyExporter = exporter;
+            exporter.runOnMainInChunks(MAIN_COPY_CHUNK_ITEMS);
         }
 
         clearSelection();
@@ -496,6 +525,150 @@ public abstract class SelectableAdapter<T extends CanvasScrollView.CanvasBlock>
         updateSelectHandles(null);
     }
 
+    /**
+     * the file of the previous copy is dropped when a new copy starts, the clipboard gets the new one
+     */
+    private static void deleteSpillFiles(Context context) {
+        File[] files = context.getCacheDir().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(SPILL_FILE_PREFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * cancels a running copy started by doCopySelection, the clipboard is left unchanged
+     */
+    public void cancelCopySelection() {
+        if (copyExporter != null) {
+            copyExporter.cancel();
+            copyExporter = null;
+        }
+    }
+
+    public boolean isCopyingSelection() {
+        return copyExporter != null;
+    }
+
+    private static synchronized Executor getCopyExecutor() {
+        if (sCopyExecutor == null) {
+            sCopyExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, "CanvasScrollView-copy");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sCopyExecutor;
+    }
+
+    /**
+     * return true if getItemSelectionText may be called on a worker thread, then a large selection
+     * is copied there. otherwise it is copied on the ui thread in chunks between frames
+     */
+    protected boolean isSelectionTextThreadSafe() {
+        return false;
+    }
+
+    /**
+     * the text of position between begin and end for copying, called on the ui thread unless
+     * {@link #isSelectionTextThreadSafe()}. the default implementation creates the block by getItem,
+     * adapters that can read the text straight from their data (without creating or measuring
+     * a block) should override it.
+     * @param end -1 means to the end of the block
+     * @return null if position has nothing to copy
+     */
+    protected CharSequence getItemSelectionText(CanvasScrollView parent, int position, int begin, int end) {
+        CanvasScrollView.CanvasBlock block = getItem(parent, position);
+        if (!(block instanceof Selectable)) {
+            return null;
+        }
+        Selectable selectable = (Selectable) block;
+        return selectable.getSelectionText(begin, end < 0 ? selectable.getSelectableSize() : end);
+    }
+
+    /**
+     * progress of a copy running on a worker, called on the ui thread
+     */
+    protected void onCopyProgress(int copiedItems, int totalItems) {
+    }
+
+    /**
+     * return true together with overriding {@link #getCopyUri}, then copies too long for the
+     * clipboard as plain text are spilled to a file and shared by uri. otherwise they fail
+     */
+    protected boolean isCopyUriSupported() {
+        return false;
+    }
+
+    /**
+     * called when the copied text is spilled to file, only if {@link #isCopyUriSupported()}.
+     * return a content uri (e.g. from a FileProvider) for file to share it by ClipData.newUri,
+     * null fails the copy.
+     */
+    protected Uri getCopyUri(Context context, File file) {
+        return null;
+    }
+
+    /**
+     * called on the ui thread when a copy finished
+     */
+    protected void onCopyFinished(Context context, ClipData clip) {
+        ClipboardManager cmb = (ClipboardManager) context.getSystemService(Context.CLIPBOARD_SERVICE);
+        cmb.setPrimaryClip(clip);
+    }
+
+    protected void onCopyFailed(Context context, Exception e) {
+        e.printStackTrace();
+        Toast.makeText(context, e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+    }
+
+    private class CopyCallback implements SelectionExporter.Callback {
+        final Context context;
+
+        CopyCallback(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public void onProgress(int copied, int total) {
+            onCopyProgress(copied, total);
+        }
+
+        @Override
+        public void onFinished(CharSequence text, File file, long length) {
+            copyExporter = null;
+            try {
+                ClipData clip;
+                if (text != null) {
+                    clip = ClipData.newPlainText(null, text);
+                } else {
+                    Uri uri = getCopyUri(context, file);
+                    if (uri == null) {
+                        file.delete();
+                        throw new IOException("selection of " + length + " chars is too large to copy as text");
+                    }
+                    clip = ClipData.newUri(context.getContentResolver(), null, uri);
+                }
+                onCopyFinished(context, clip);
+            } catch (Exception e) {
+                onCopyFailed(context, e);
+            }
+        }
+
+        @Override
+        public void onFailed(Exception e) {
+            copyExporter = null;
+            onCopyFailed(context, e);
+        }
+    }
+
     private boolean isSelectionRangeContains(CanvasScrollView.CanvasBlock block, int blockX, int blockY) {
         CanvasScrollView scrollView = getCanvasScrollView();
         if (scrollView == null || !getVisibleSelectionRect(visibleRect)) {
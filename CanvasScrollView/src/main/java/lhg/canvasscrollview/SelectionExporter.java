@@ -0,0 +1,193 @@
+package lhg.canvasscrollview;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * streams the text of a selection block by block. small results stay in memory, once the text
+ * is longer than maxInlineChars it is spilled to a file, or fails without one, so a "select all"
+ * over a huge adapter never holds the whole text on the heap. callbacks are delivered on the main thread.
+ */
+class SelectionExporter implements Runnable {
+    private static final int PROGRESS_STEP = 1024;
+
+    interface Source {
+        /**
+         * @param end -1 means to the end of the block
+         */
+        CharSequence getText(int position, int begin, int end);
+    }
+
+    interface Callback {
+        void onProgress(int copied, int total);
+        /**
+         * @param text null if the selection was spilled to file
+         */
+        void onFinished(CharSequence text, File file, long length);
+        void onFailed(Exception e);
+    }
+
+    private final Source source;
+    private final Callback callback;
+    private final int fromPosition;
+    private final int toPosition;
+    private final int beginPosition;
+    private final int beginOffset;
+    private final int endPosition;
+    private final int endOffset;
+    private final File spillFile;
+    private final int maxInlineChars;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean cancelled = false;
+    // progress of the copy, advanced by step
+    private int position;
+    private StringBuilder sb = new StringBuilder();
+    private Writer writer;
+    private long length = 0;
+
+    /**
+     * @param fromPosition first position to copy
+     * @param toPosition   position after the last one to copy
+     * @param spillFile    null to fail a copy longer than maxInlineChars
+     */
+    SelectionExporter(Source source, Callback callback, int fromPosition, int toPosition,
+                      int beginPosition, int beginOffset, int endPosition, int endOffset,
+                      File spillFile, int maxInlineChars) {
+        this.source = source;
+        this.callback = callback;
+        this.fromPosition = fromPosition;
+        this.toPosition = toPosition;
+        this.beginPosition = beginPosition;
+        this.beginOffset = beginOffset;
+        this.endPosition = endPosition;
+        this.endOffset = endOffset;
+        this.spillFile = spillFile;
+        this.maxInlineChars = maxInlineChars;
+        this.position = fromPosition;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * copies everything at once, on a worker or for a small selection on the main thread
+     */
+    @Override
+    public void run() {
+        while (!step(Integer.MAX_VALUE)) {
+            // copy on
+        }
+    }
+
+    /**
+     * copies on the main thread, chunkItems items per message, so frames are drawn between the chunks
+     */
+    void runOnMainInChunks(final int chunkItems) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!step(chunkItems)) {
+                    mainHandler.post(this);
+                }
+            }
+        });
+    }
+
+    /**
+     * copies up to maxItems more items
+     *
+     * @return true when the copy finished, failed or was cancelled
+     */
+    private boolean step(int maxItems) {
+        final int total = toPosition - fromPosition;
+        try {
+            int stop = (int) Math.min(toPosition, (long) position + maxItems);
+            for (; position < stop; position++) {
+                if (cancelled) {
+                    closeQuietly(writer);
+                    deleteSpillFile();
+                    return true;
+                }
+                int begin = beginPosition < position ? 0 : beginOffset;
+                int end = endPosition > position ? -1 : endOffset;
+                CharSequence text = source.getText(position, begin, end);
+                if (text != null && text.length() > 0) {
+                    length += text.length();
+                    if (writer != null) {
+                        writer.append(text);
+                    } else {
+                        sb.append(text);
+                        if (sb.length() > maxInlineChars) {
+                            if (spillFile == null) {
+                                throw new IOException("selection of more than " + maxInlineChars + " chars is too large to copy as text");
+                            }
+                            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spillFile), "UTF-8"));
+                            writer.append(sb);
+                            sb = null;
+                        }
+                    }
+                }
+                final int copied = position - fromPosition + 1;
+                if (copied % PROGRESS_STEP == 0) {
+                    postToMain(() -> callback.onProgress(copied, total));
+                }
+            }
+            if (position < toPosition) {
+                return false;
+            }
+            if (writer != null) {
+                writer.close();
+            }
+            final CharSequence text = writer == null ? sb.toString() : null;
+            final long finalLength = length;
+            postToMain(() -> callback.onFinished(text, text == null ? spillFile : null, finalLength));
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(writer);
+            deleteSpillFile();
+            postToMain(() -> callback.onFailed(e));
+        }
+        return true;
+    }
+
+    private void postToMain(final Runnable r) {
+        Runnable guarded = () -> {
+            if (!cancelled) {
+                r.run();
+            }
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            guarded.run();
+        } else {
+            mainHandler.post(guarded);
+        }
+    }
+
+    private void deleteSpillFile() {
+        if (spillFile != null) {
+            spillFile.delete();
+        }
+    }
+
+    private static void closeQuietly(Writer writer) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -13,39 +13,116 @@ import java.util.List;
 public abstract class GroupBlock extends CanvasScrollView.CanvasBlock implements SelectableAdapter.Selectable, CanvasScrollView.CanvasBlockParent {
 
     protected List<CanvasScrollView.CanvasBlock> children = new ArrayList();
+    // selectableOffsets[i] is the selection offset where children[i] starts, the last entry is the size
+    private int[] selectableOffsets = new int[1];
+    private boolean selectableOffsetsValid = false;
 
     public void addBlock(CanvasScrollView.CanvasBlock block) {
         children.add(block);
         block.onAttachedToParent(this);
-
+        invalidateSelectableOffsets();
     }
     public void removeBlock(CanvasScrollView.CanvasBlock block) {
         children.remove(block);
         block.onDetachedFromParent(this);
+        invalidateSelectableOffsets();
     }
     public void removeBlock(int index) {
         CanvasScrollView.CanvasBlock block = children.remove(index);
         if (block != null) {
             block.onDetachedFromParent(this);
         }
+        invalidateSelectableOffsets();
+    }
+
+    /**
+     * call it after changing children directly or changing the selectable size of a child
+     * without invalidating it
+     */
+    protected void invalidateSelectableOffsets() {
+        selectableOffsetsValid = false;
+    }
+
+    private int[] getSelectableOffsets() {
+        int n = children.size();
+        if (selectableOffsetsValid && selectableOffsets.length == n + 1) {
+            return selectableOffsets;
+        }
+        if (selectableOffsets.length != n + 1) {
+            selectableOffsets = new int[n + 1];
+        }
+        int offset = 0;
+        for (int i = 0; i < n; i++) {
+            selectableOffsets[i] = offset;
+            CanvasScrollView.CanvasBlock b = children.get(i);
+            if (b instanceof SelectableAdapter.Selectable) {
+                offset += ((SelectableAdapter.Selectable) b).getSelectableSize();
+            }
+        }
+        selectableOffsets[n] = offset;
+        selectableOffsetsValid = true;
+        return selectableOffsets;
+    }
+
+    /**
+     * @return index of the child containing the selection offset, the last child if offset is at the end
+     */
+    protected int indexOfChildAtSelectionOffset(int offset) {
+        int[] offsets = getSelectableOffsets();
+        int lo = 0, hi = children.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    protected int indexOfChild(CanvasScrollView.CanvasBlock child) {
+        int top = child.getTop();
+        for (int i = countChildrenAbove(top, true) - 1; i >= 0 && children.get(i).getTop() == top; i--) {
+            if (children.get(i) == child) {
+                return i;
+            }
+        }
+        return children.indexOf(child);
     }
 
     public List<CanvasScrollView.CanvasBlock> getChildren() {
         return children;
     }
 
+    @Override
+    public void invalidate() {
+        invalidateSelectableOffsets();
+        super.invalidate();
+    }
+
     @Override
     public void invalidate(CanvasScrollView.CanvasBlock child) {
+        invalidateSelectableOffsets();
         CanvasScrollView.CanvasBlockParent parent = getParent();
         if (parent != null) {
             parent.invalidate(this);
         }
     }
 
+    @Override
+    public void invalidateDrawing(CanvasScrollView.CanvasBlock child, int top, int bottom) {
+        invalidateDrawing(child.getTop() + top, child.getTop() + bottom);
+    }
+
     @Override
     public void onDraw(CanvasScrollView parent, Canvas canvas, int left, int top, int right, int bottom) {
-        for (CanvasScrollView.CanvasBlock b : children) {
-            if (b.getBottom() < top || b.getTop() > bottom || b.getLeft() > right || b.getRight() < left) {
+        for (int i = 0, n = children.size(); i < n; i++) {
+            CanvasScrollView.CanvasBlock b = children.get(i);
+            if (b.getTop() > bottom) {
+                break;
+            }
+            if (b.getBottom() < top || b.getLeft() > right || b.getRight() < left) {
                 continue;
             }
             canvas.save();
@@ -57,9 +134,45 @@ public abstract class GroupBlock extends CanvasScrollView.CanvasBlock implements
         }
     }
 
+    /**
+     * children are left to right, top to bottom, so their tops never decrease
+     *
+     * @return the count of children whose top is above y (or at y if inclusive)
+     */
+    protected int countChildrenAbove(int y, boolean inclusive) {
+        return countChildrenAbove(y, inclusive, children.size());
+    }
+
+    /**
+     * countChildrenAbove among the first end children
+     */
+    protected final int countChildrenAbove(int y, boolean inclusive, int end) {
+        int lo = 0, hi = end;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int top = children.get(mid).getTop();
+            if (top < y || (inclusive && top == y)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
     protected CanvasScrollView.CanvasBlock findChild(int x, int y) {
-        for (CanvasScrollView.CanvasBlock b : children) {
-            if (b.getTop() <= y && b.getBottom() >= y && b.getLeft() <= x && b.getRight() >= x) {
+        int end = countChildrenAbove(y, true);
+        if (end == 0) {
+            return null;
+        }
+        //only the last row can contain y, earlier rows end before it starts
+        int rowTop = children.get(end - 1).getTop();
+        for (int i = end - 1; i >= 0; i--) {
+            CanvasScrollView.CanvasBlock b = children.get(i);
+            if (b.getTop() < rowTop && b.getBottom() < y) {
+                break;
+            }
+            if (b.getBottom() >= y && b.getLeft() <= x && b.getRight() >= x) {
                 return b;
             }
         }
@@ -70,10 +183,15 @@ public abstract class GroupBlock extends CanvasScrollView.CanvasBlock implements
         CanvasScrollView.CanvasBlock block = null;
         int distance = Integer.MAX_VALUE;
         int tmp = 0;
-        for (CanvasScrollView.CanvasBlock b : children) {
-            if (b.getTop() < y && b.getLeft() < x) {
+        for (int i = countChildrenAbove(y, false) - 1; i >= 0; i--) {
+            CanvasScrollView.CanvasBlock b = children.get(i);
+            if (y - b.getTop() >= distance) {
+                //tops only get smaller from here, nothing can be nearer
+                break;
+            }
+            if (b.getLeft() < x) {
                 tmp = y - b.getTop() + x - b.getLeft();
-                if (tmp < distance) {
+                if (tmp <= distance) {
                     block = b;
                     distance = tmp;
                 }
@@ -98,13 +216,9 @@ public abstract class GroupBlock extends CanvasScrollView.CanvasBlock implements
     private void translateSelectPointToMe(CanvasScrollView.CanvasBlock child, SelectableAdapter.SelectPoint point) {
         point.y += child.getTop();
         point.x += child.getLeft();
-        for (CanvasScrollView.CanvasBlock b : children) {
-            if (b == child) {
-                break;
-            }
-            if (b instanceof SelectableAdapter.Selectable) {
-                point.offset += ((SelectableAdapter.Selectable) b).getSelectableSize();
-            }
+        int i = indexOfChild(child);
+        if (i >= 0) {
+            point.offset += getSelectableOffsets()[i];
         }
     }
 
@@ -124,35 +238,43 @@ public abstract class GroupBlock extends CanvasScrollView.CanvasBlock implements
 
     @Override
     public int getSelectableSize() {
-        int count = 0;
-        for (CanvasScrollView.CanvasBlock b : children) {
-            if (b instanceof SelectableAdapter.Selectable) {
-                count += ((SelectableAdapter.Selectable) b).getSelectableSize();
-            }
-        }
-        return count;
+        return getSelectableOffsets()[children.size()];
     }
 
     @Override
     public void onDrawSelection(CanvasScrollView parent, Canvas canvas, Paint selectPaint, int begin, int end) {
-        int childBegin = 0;
-        for (CanvasScrollView.CanvasBlock b : children) {
+        if (children.isEmpty()) {
+            return;
+        }
+        int[] offsets = getSelectableOffsets();
+        for (int i = indexOfChildAtSelectionOffset(begin); i < children.size(); i++) {
+            CanvasScrollView.CanvasBlock b = children.get(i);
             if (!(b instanceof SelectableAdapter.Selectable)) {
                 continue;
             }
-            int size = ((SelectableAdapter.Selectable) b).getSelectableSize();
-            getChildSelction(range, begin, end, childBegin, childBegin += size);
+            int childEnd = offsets[i + 1];
+            getChildSelction(range, begin, end, offsets[i], childEnd);
             if (!range.isEmpty()) {
+                if (!isChildSelectionDrawable(i)) {
+                    continue;
+                }
                 canvas.save();
                 canvas.translate(b.getLeft(), b.getTop());
                 ((SelectableAdapter.Selectable) b).onDrawSelection(parent, canvas, selectPaint, range.begin, range.end);
                 canvas.restore();
-            } else if (childBegin >= end) {
+            } else if (childEnd >= end) {
                 break;
             }
         }
     }
 
+    /**
+     * false if the child at index is not measured or positioned yet, its part of the selection is not drawn
+     */
+    protected boolean isChildSelectionDrawable(int index) {
+        return true;
+    }
+
     private void getChildSelction(Range range, int begin, int end, int childBegin, int childEnd) {
         range.begin = Math.max(begin - childBegin, 0);
         range.end = Math.min(childEnd, end) - childBegin;
@@ -161,17 +283,21 @@ public abstract class GroupBlock extends CanvasScrollView.CanvasBlock implements
     final Range range = new Range();
     @Override
     public String getSelectionText(int begin, int end) {
-        int childBegin = 0;
         StringBuilder sb = new StringBuilder();
-        for (CanvasScrollView.CanvasBlock b : children) {
+        if (children.isEmpty()) {
+            return sb.toString();
+        }
+        int[] offsets = getSelectableOffsets();
+        for (int i = indexOfChildAtSelectionOffset(begin); i < children.size(); i++) {
+            CanvasScrollView.CanvasBlock b = children.get(i);
             if (!(b instanceof SelectableAdapter.Selectable)) {
                 continue;
             }
-            int size = ((SelectableAdapter.Selectable) b).getSelectableSize();
-            getChildSelction(range, begin, end, childBegin, childBegin += size);
+            int childEnd = offsets[i + 1];
+            getChildSelction(range, begin, end, offsets[i], childEnd);
             if (!range.isEmpty()) {
                 sb.append(((SelectableAdapter.Selectable) b).getSelectionText(range.begin, range.end));
-            } else if (childBegin >= end) {
+            } else if (childEnd >= end) {
                 break;
             }
         }
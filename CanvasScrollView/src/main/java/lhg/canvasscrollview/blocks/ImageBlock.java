@@ -8,10 +8,12 @@ import android.graphics.Rect;
 import lhg.canvasscrollview.CanvasScrollView;
 import lhg.canvasscrollview.SelectableAdapter;
 
-@Deprecated // you should not use ImageBlock， please extends OneBlock and manage your own memory of bitmap, and be careful of oom
+@Deprecated // you should not use ImageBlock， please use RegionImageBlock or extends OneBlock and manage your own memory of bitmap, and be careful of oom
 public class ImageBlock extends OneBlock implements SelectableAdapter.Selectable {
     public Bitmap bitmap;
     public Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Rect srcRt = new Rect();
+    private final Rect destRt = new Rect();
 
     public ImageBlock() {
         paint.setFilterBitmap(true);
@@ -26,8 +28,8 @@ public class ImageBlock extends OneBlock implements SelectableAdapter.Selectable
 
     @Override
     public void onDraw(CanvasScrollView parent, Canvas canvas, int left, int top, int right, int bottom) {
-        Rect srcRt = new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
-        Rect destRt = new Rect(
+        srcRt.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        destRt.set(
                 getLeftOffset() + getPaddingLeft(), getPaddingTop(),
                 getLeftOffset() + getPaddingLeft() + getContentWidth(), getHeight() - getPaddingBottom());
         canvas.drawBitmap(bitmap, srcRt, destRt, paint);
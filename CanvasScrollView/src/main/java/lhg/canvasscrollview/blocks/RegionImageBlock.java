@@ -0,0 +1,341 @@
+package lhg.canvasscrollview.blocks;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lhg.canvasscrollview.BitmapPool;
+import lhg.canvasscrollview.CanvasScrollView;
+
+/**
+ * replacement of ImageBlock for big images. only the bands of the image near the window are decoded,
+ * by BitmapRegionDecoder on a background thread, at a sample size matching the on screen width.
+ * a placeholder is drawn until a band is decoded. decoded bitmaps go back to the BitmapPool when
+ * they leave the window or the block is detached.
+ */
+public class RegionImageBlock extends OneBlock {
+    public static final int DEFAULT_TILE_HEIGHT = 512;
+    // bands decoded beyond the visible ones, farther ones are released
+    private static final int KEEP_TILES = 1;
+    // height per width of the placeholder measured until the bounds are decoded
+    private static final float PLACEHOLDER_ASPECT = 0.75f;
+    private static ExecutorService sDecodeExecutor;
+
+    public interface Source {
+        /**
+         * called on a background thread, the stream is closed by the block
+         */
+        InputStream open() throws IOException;
+    }
+
+    private static final class Tile {
+        Bitmap bitmap;
+        boolean pending;
+        // the decoded band in image pixels
+        final Rect src = new Rect();
+    }
+
+    private final Source source;
+    private final BitmapPool bitmapPool;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Object decoderLock = new Object();
+    private BitmapRegionDecoder decoder;
+    private volatile int imageWidth;
+    private volatile int imageHeight;
+    private boolean boundsPending = false;
+    private int tileHeight = DEFAULT_TILE_HEIGHT;
+    private int sampleSize = 1;
+    private Tile[] tiles;
+    // bumped when the tiles are released, decodes of an older generation are dropped
+    private volatile int generation = 0;
+    private CanvasScrollView host;
+    public Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    public Paint placeholderPaint = new Paint();
+    private final Rect srcRect = new Rect();
+    private final Rect dstRect = new Rect();
+
+    public RegionImageBlock(Source source) {
+        this(source, 0, 0, BitmapPool.getDefault());
+    }
+
+    /**
+     * @param imageWidth  0 if unknown, the bounds are decoded by onPreMeasure, or on the decode
+     *                    thread after onMeasure measured a placeholder
+     */
+    public RegionImageBlock(Source source, int imageWidth, int imageHeight, BitmapPool bitmapPool) {
+        this.source = source;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.bitmapPool = bitmapPool;
+        paint.setFilterBitmap(true);
+        paint.setDither(true);
+        placeholderPaint.setColor(0xffeeeeee);
+    }
+
+    private static synchronized ExecutorService getDecodeExecutor() {
+        if (sDecodeExecutor == null) {
+            sDecodeExecutor = Executors.newFixedThreadPool(2, r -> {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, "RegionImageBlock-decode");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sDecodeExecutor;
+    }
+
+    public void setTileHeight(int tileHeight) {
+        this.tileHeight = Math.max(1, tileHeight);
+        releaseTiles();
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    @Override
+    public boolean onPreMeasure(Context context, int parentWidth) {
+        if (imageWidth > 0 && imageHeight > 0) {
+            return false;
+        }
+        decodeBounds();
+        return true;
+    }
+
+    private void decodeBounds() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = source.open()) {
+            BitmapFactory.decodeStream(in, null, options);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        imageHeight = Math.max(0, options.outHeight);
+        imageWidth = Math.max(0, options.outWidth);
+    }
+
+    /**
+     * the stream is not read on the ui thread, the block is measured again when the bounds arrive
+     */
+    private void requestBounds() {
+        if (boundsPending) {
+            return;
+        }
+        boundsPending = true;
+        getDecodeExecutor().execute(() -> {
+            if (imageWidth <= 0 || imageHeight <= 0) {
+                decodeBounds();
+            }
+            mainHandler.post(() -> {
+                boundsPending = false;
+                if (imageWidth > 0 && imageHeight > 0) {
+                    invalidate();
+                }
+            });
+        });
+    }
+
+    @Override
+    public void onMeasure(CanvasScrollView parent, int parentWidth, boolean horizontalScrollable) {
+        int maxWidth = Math.max(1, parentWidth - getPaddingLeft() - getPaddingRight());
+        if (imageWidth <= 0 || imageHeight <= 0) {
+            requestBounds();
+            releaseTiles();
+            setContentSize(maxWidth, (int) (maxWidth * PLACEHOLDER_ASPECT));
+            super.onMeasure(parent, parentWidth, horizontalScrollable);
+            return;
+        }
+        int w = Math.min(imageWidth, maxWidth);
+        int h = (int) ((long) imageHeight * w / imageWidth);
+        if (w != getContentWidth() || h != getContentHeight()) {
+            releaseTiles();
+        }
+        setContentSize(w, h);
+        int sample = 1;
+        while (w > 0 && imageWidth / (sample * 2) >= w) {
+            sample *= 2;
+        }
+        if (sample != sampleSize) {
+            releaseTiles();
+            sampleSize = sample;
+        }
+        super.onMeasure(parent, parentWidth, horizontalScrollable);
+    }
+
+    @Override
+    public void onDraw(CanvasScrollView parent, Canvas canvas, int left, int top, int right, int bottom) {
+        host = parent;
+        int contentWidth = getContentWidth();
+        int contentHeight = getContentHeight();
+        if (contentWidth <= 0 || contentHeight <= 0) {
+            return;
+        }
+        if (imageWidth <= 0 || imageHeight <= 0) {
+            canvas.drawRect(getLeftOffset() + getPaddingLeft(), getPaddingTop(),
+                    getLeftOffset() + getPaddingLeft() + contentWidth, getPaddingTop() + contentHeight, placeholderPaint);
+            return;
+        }
+        int x = getLeftOffset() + getPaddingLeft();
+        int y = getPaddingTop();
+        int count = (contentHeight + tileHeight - 1) / tileHeight;
+        if (tiles == null || tiles.length != count) {
+            releaseTiles();
+            tiles = new Tile[count];
+        }
+        int first = Math.max(0, (top - y) / tileHeight);
+        int last = Math.min(count - 1, (bottom - y - 1) / tileHeight);
+        for (int i = first; i <= last; i++) {
+            int tileTop = y + i * tileHeight;
+            int tileBottom = Math.min(y + contentHeight, tileTop + tileHeight);
+            dstRect.set(x, tileTop, x + contentWidth, tileBottom);
+            Tile tile = tiles[i];
+            if (tile == null) {
+                tile = tiles[i] = new Tile();
+            }
+            if (tile.bitmap == null) {
+                canvas.drawRect(dstRect, placeholderPaint);
+                requestTile(tile, i, count);
+                continue;
+            }
+            srcRect.set(0, 0, tile.bitmap.getWidth(), tile.bitmap.getHeight());
+            canvas.drawBitmap(tile.bitmap, srcRect, dstRect, paint);
+        }
+        // prepare the neighbours, release the far ones
+        for (int i = 0; i < count; i++) {
+            if (i >= first - KEEP_TILES && i <= last + KEEP_TILES) {
+                if (i < first || i > last) {
+                    if (tiles[i] == null) {
+                        tiles[i] = new Tile();
+                    }
+                    if (tiles[i].bitmap == null) {
+                        requestTile(tiles[i], i, count);
+                    }
+                }
+            } else if (tiles[i] != null && !tiles[i].pending) {
+                bitmapPool.put(tiles[i].bitmap);
+                tiles[i] = null;
+            }
+        }
+    }
+
+    /**
+     * drawing bitmaps is cheap, and a recording of the whole block would decode every band
+     */
+    @Override
+    public boolean isDisplayListCacheable() {
+        return false;
+    }
+
+    private void requestTile(final Tile tile, int index, int count) {
+        if (tile.pending || imageWidth <= 0) {
+            return;
+        }
+        int contentHeight = getContentHeight();
+        int displayTop = index * tileHeight;
+        int displayBottom = index == count - 1 ? contentHeight : displayTop + tileHeight;
+        tile.src.set(0, (int) ((long) displayTop * imageHeight / contentHeight),
+                imageWidth, (int) Math.min(imageHeight, (long) displayBottom * imageHeight / contentHeight));
+        if (tile.src.height() <= 0) {
+            return;
+        }
+        tile.pending = true;
+        final int gen = generation;
+        final int sample = sampleSize;
+        final Rect src = new Rect(tile.src);
+        getDecodeExecutor().execute(() -> {
+            final Bitmap bitmap = gen == generation ? decodeRegion(src, sample) : null;
+            mainHandler.post(() -> {
+                tile.pending = false;
+                if (gen != generation) {
+                    bitmapPool.put(bitmap);
+                    return;
+                }
+                tile.bitmap = bitmap;
+                if (bitmap != null) {
+                    invalidateDisplayList();
+                    if (host != null) {
+                        host.invalidate();
+                    }
+                }
+            });
+        });
+    }
+
+    private Bitmap decodeRegion(Rect src, int sample) {
+        synchronized (decoderLock) {
+            try {
+                if (decoder == null) {
+                    try (InputStream in = source.open()) {
+                        decoder = BitmapRegionDecoder.newInstance(in, false);
+                    }
+                }
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = sample;
+                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                //the decoder scales a region to floor(size / sample)
+                options.inBitmap = bitmapPool.get(Math.max(1, src.width() / sample),
+                        Math.max(1, src.height() / sample), Bitmap.Config.ARGB_8888);
+                try {
+                    return decoder.decodeRegion(src, options);
+                } catch (IllegalArgumentException e) {
+                    //the pooled bitmap can not be reused, it goes back for another size
+                    bitmapPool.put(options.inBitmap);
+                    options.inBitmap = null;
+                    return decoder.decodeRegion(src, options);
+                }
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                return null;
+            } catch (OutOfMemoryError e) {
+                bitmapPool.clear();
+                return null;
+            }
+        }
+    }
+
+    private void releaseTiles() {
+        generation++;
+        if (tiles == null) {
+            return;
+        }
+        for (Tile tile : tiles) {
+            if (tile != null) {
+                bitmapPool.put(tile.bitmap);
+            }
+        }
+        tiles = null;
+    }
+
+    @Override
+    public void onDetachedFromParent(CanvasScrollView.CanvasBlockParent parent) {
+        super.onDetachedFromParent(parent);
+        releaseTiles();
+        host = null;
+        getDecodeExecutor().execute(() -> {
+            synchronized (decoderLock) {
+                if (decoder != null && !isAttached()) {
+                    decoder.recycle();
+                    decoder = null;
+                }
+            }
+        });
+    }
+}
@@ -5,6 +5,7 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.util.SparseArray;
 
 import lhg.canvasscrollview.CanvasScrollView;
 import lhg.canvasscrollview.DimenUtils;
@@ -17,6 +18,13 @@ public class TableBlock extends GroupBlock {
     public static final int ALIGNMENT_CENTER = 1;
     public static final int ALIGNMENT_RIGHT = 2;
 
+    /** rows are measured with the whole width until every column reaches the average width */
+    public static final int COLUMN_WIDTHS_FULL = 0;
+    /** like FULL but at most the first sampleRows rows */
+    public static final int COLUMN_WIDTHS_SAMPLED = 1;
+    /** from {@link #setColumnWeights(float[])}, no cell is measured for the widths */
+    public static final int COLUMN_WIDTHS_FIXED = 2;
+
     private int row;
     private int col;
     private int borderWidth = -1;
@@ -24,10 +32,49 @@ public class TableBlock extends GroupBlock {
     private static Paint paint = new Paint();
     private int[] rowHeights = null;
     private int[] colWidths = null;
+    // start of every row/column inside the borders, the last entry is the end, for hit testing
+    private int[] rowStarts = null;
+    private int[] colStarts = null;
     private int cellPadding = -1;
     private int[] alignments = null;
     private int headerColor = Color.TRANSPARENT;
     private int[] bodyColors = null;
+    // virtualized: column widths come from the first sampleRows rows, rows are measured in bands when drawn
+    private boolean virtualized = false;
+    private int sampleRows = DEFAULT_SAMPLE_ROWS;
+    private boolean[] rowMeasured = null;
+    private long measuredRowsSum = 0;
+    private int measuredRowCount = 0;
+    // height of the rows which are not measured yet
+    private int rowEstimate = 0;
+    // no row above it is unmeasured
+    private int firstUnmeasuredRow = 0;
+    // rows [0, laidOutRows) of a virtualized table have their rowStarts and cells in place,
+    // rowStarts[laidOutRows] included. the rows below are positioned when something reaches them
+    private int laidOutRows = 0;
+    private boolean relayoutPosted = false;
+    private final Runnable relayoutRunnable = () -> {
+        relayoutPosted = false;
+        relayoutOnly = true;
+        try {
+            invalidate();
+        } finally {
+            relayoutOnly = false;
+        }
+    };
+    private int measuredParentWidth = -1;
+    private boolean relayoutOnly = false;
+    // set while a single cell is invalidated, the cache entries of its cell are dropped by hand
+    private boolean keepMeasureCache = false;
+    private int columnWidthStrategy = COLUMN_WIDTHS_FULL;
+    private float[] columnWeights = null;
+    // final column widths by parentWidth, dropped when a cell of the probed rows changes
+    private final SparseArray<int[]> columnWidthCache = new SparseArray<>();
+    private int probedRows = 0;
+    // the width each cell was last measured with, -1 if it must be measured again
+    private int[] cellMeasuredWidths = null;
+    public static final int DEFAULT_SAMPLE_ROWS = 50;
+    private static final int ROW_BAND = 32;
 
     public TableBlock() {
     }
@@ -38,6 +85,7 @@ public class TableBlock extends GroupBlock {
 
     public void setRow(int row) {
         this.row = row;
+        dropMeasureCache();
     }
 
     public int getCol() {
@@ -46,10 +94,12 @@ public class TableBlock extends GroupBlock {
 
     public void setCol(int col) {
         this.col = col;
+        dropMeasureCache();
     }
 
     public void setBorderWidth(int borderWidth) {
         this.borderWidth = borderWidth;
+        dropMeasureCache();
     }
 
     public void setBorderColor(int borderColor) {
@@ -70,6 +120,7 @@ public class TableBlock extends GroupBlock {
 
     public void setCellPadding(int cellPadding) {
         this.cellPadding = cellPadding;
+        dropMeasureCache();
     }
 
     public void setHeaderColor(int headerColor) {
@@ -80,6 +131,95 @@ public class TableBlock extends GroupBlock {
         this.bodyColors = bodyColors;
     }
 
+    /**
+     * for tables with thousands of rows. onMeasure only measures the first rows for the column widths
+     * and one band of rows, the other rows get the average measured height until they are drawn,
+     * then the table corrects its height
+     */
+    public void setVirtualized(boolean virtualized) {
+        this.virtualized = virtualized;
+        dropMeasureCache();
+    }
+
+    public boolean isVirtualized() {
+        return virtualized;
+    }
+
+    /**
+     * @param sampleRows rows measured for the column widths with COLUMN_WIDTHS_SAMPLED, or of a virtualized table
+     */
+    public void setSampleRows(int sampleRows) {
+        this.sampleRows = Math.max(1, sampleRows);
+        dropMeasureCache();
+    }
+
+    /**
+     * @param strategy COLUMN_WIDTHS_FULL, COLUMN_WIDTHS_SAMPLED or COLUMN_WIDTHS_FIXED,
+     *                 a virtualized table uses SAMPLED instead of FULL
+     */
+    public void setColumnWidthStrategy(int strategy) {
+        this.columnWidthStrategy = strategy;
+        dropMeasureCache();
+    }
+
+    public int getColumnWidthStrategy() {
+        return columnWidthStrategy;
+    }
+
+    /**
+     * the share of every column for COLUMN_WIDTHS_FIXED, null for equal columns
+     */
+    public void setColumnWeights(float[] columnWeights) {
+        this.columnWeights = columnWeights;
+        dropMeasureCache();
+    }
+
+    private void dropMeasureCache() {
+        columnWidthCache.clear();
+        cellMeasuredWidths = null;
+        measuredParentWidth = -1;
+    }
+
+    /**
+     * cellMeasuredWidths is indexed by child, so children changing drop the measure cache
+     */
+    @Override
+    protected void invalidateSelectableOffsets() {
+        super.invalidateSelectableOffsets();
+        if (!relayoutOnly && !keepMeasureCache) {
+            dropMeasureCache();
+        }
+    }
+
+    @Override
+    public void invalidate(CanvasScrollView.CanvasBlock child) {
+        int i = col > 0 ? indexOfChild(child) : -1;
+        if (i >= 0 && i / col < row) {
+            if (cellMeasuredWidths != null && i < cellMeasuredWidths.length) {
+                cellMeasuredWidths[i] = -1;
+            }
+            if (i / col < probedRows) {
+                //the cell may change the column widths
+                columnWidthCache.clear();
+                measuredParentWidth = -1;
+            }
+            if (virtualized && rowMeasured != null && rowMeasured[i / col]) {
+                int r = i / col;
+                rowMeasured[r] = false;
+                measuredRowsSum -= rowHeights[r];
+                measuredRowCount--;
+                firstUnmeasuredRow = Math.min(firstUnmeasuredRow, r);
+                laidOutRows = Math.min(laidOutRows, r);
+            }
+        }
+        keepMeasureCache = true;
+        try {
+            super.invalidate(child);
+        } finally {
+            keepMeasureCache = false;
+        }
+    }
+
     protected int getRowColor(int row) {
         if (row == 0) {
             return headerColor;
@@ -91,17 +231,127 @@ public class TableBlock extends GroupBlock {
 
     @Override
     public void onMeasure(CanvasScrollView parent, int parentWidth, boolean horizontalScrollable) {
+        if (virtualized) {
+            measureVirtualized(parent, parentWidth);
+            return;
+        }
         initProps(parent.getContext());
         for (CanvasScrollView.CanvasBlock b : children) {
             b.setPadding(0,0,0,0);
         }
-        int totalWidth = parentWidth - getPaddingLeft() - getPaddingRight() - cellPadding * col * 2 - borderWidth * (col + 1);
+        prepareCells();
+        computeColumnWidths(parent, parentWidth);
+
+        int y = getPaddingTop() + borderWidth;
         for (int r = 0; r < row; r++) {
+            rowStarts[r] = y;
+            int x = getPaddingLeft() + borderWidth;
             for (int c = 0; c < col; c++) {
+                colStarts[c] = x;
                 int i = r * col + c;
                 CanvasScrollView.CanvasBlock block = children.get(i);
-                block.onMeasure(parent, totalWidth);
-                colWidths[c] = Math.max(colWidths[c], block.getWidth());
+                measureCell(parent, i, colWidths[c]);
+                int left = x + cellPadding;
+                if (getAlignment(c) == ALIGNMENT_RIGHT) {
+                    left += colWidths[c] - block.getWidth();
+                } else if (getAlignment(c) == ALIGNMENT_CENTER) {
+                    left += (colWidths[c] - block.getWidth())/2;
+                }
+                block.setLeft(left);
+                block.setTop(y + cellPadding);
+                rowHeights[r] = Math.max(rowHeights[r], block.getHeight());
+                x += colWidths[c] + borderWidth + cellPadding * 2;
+            }
+            colStarts[col] = x;
+            y += rowHeights[r] + borderWidth + cellPadding * 2;
+        }
+        rowStarts[row] = y;
+        setWidth(parentWidth);
+        setHeight(y + getPaddingBottom());
+    }
+
+    private void prepareCells() {
+        int n = row * col;
+        if (cellMeasuredWidths == null || cellMeasuredWidths.length != n) {
+            cellMeasuredWidths = new int[n];
+            Arrays.fill(cellMeasuredWidths, -1);
+            columnWidthCache.clear();
+        }
+    }
+
+    /**
+     * measures cell i with width unless it is already measured with it
+     */
+    private void measureCell(CanvasScrollView parent, int i, int width) {
+        CanvasScrollView.CanvasBlock block = children.get(i);
+        int measuredWith = cellMeasuredWidths[i];
+        if (measuredWith == width || (measuredWith > width && block.getWidth() <= width
+                && isWiderMeasureReusable(block))) {
+            return;
+        }
+        block.onMeasure(parent, width);
+        cellMeasuredWidths[i] = width;
+    }
+
+    /**
+     * whether block, measured with a larger width and no wider than the cell, draws the same as if it
+     * were measured with the width of the cell, then it is not measured again. false by default:
+     * centered, right aligned or rtl text is placed by the width it was measured with and would
+     * be drawn outside the cell. override it for tables of left aligned ltr cells
+     */
+    protected boolean isWiderMeasureReusable(CanvasScrollView.CanvasBlock block) {
+        return false;
+    }
+
+    /**
+     * fills colWidths from the cache, or by the strategy
+     */
+    private void computeColumnWidths(CanvasScrollView parent, int parentWidth) {
+        int[] cached = columnWidthCache.get(parentWidth);
+        if (cached != null && cached.length == col) {
+            System.arraycopy(cached, 0, colWidths, 0, col);
+            return;
+        }
+        Arrays.fill(colWidths, 0);
+        int totalWidth = parentWidth - getPaddingLeft() - getPaddingRight() - cellPadding * col * 2 - borderWidth * (col + 1);
+        if (columnWidthStrategy == COLUMN_WIDTHS_FIXED) {
+            fixColumnWidths(totalWidth);
+        } else {
+            int maxRows = columnWidthStrategy == COLUMN_WIDTHS_SAMPLED || virtualized ? sampleRows : row;
+            measureColumnWidths(parent, totalWidth, maxRows);
+        }
+        columnWidthCache.put(parentWidth, Arrays.copyOf(colWidths, col));
+    }
+
+    private void fixColumnWidths(int totalWidth) {
+        probedRows = 0;
+        float sum = 0;
+        for (int c = 0; c < col; c++) {
+            sum += getColumnWeight(c);
+        }
+        int consumed = 0;
+        for (int c = 0; c < col; c++) {
+            colWidths[c] = c == col - 1 ? totalWidth - consumed
+                    : sum <= 0 ? totalWidth / col : (int) (totalWidth * getColumnWeight(c) / sum);
+            consumed += colWidths[c];
+        }
+    }
+
+    private float getColumnWeight(int col) {
+        return columnWeights != null && columnWeights.length > col ? Math.max(0, columnWeights[col]) : 1;
+    }
+
+    /**
+     * measures the cells of at most maxRows rows with the whole width and fits the columns into it
+     */
+    private void measureColumnWidths(CanvasScrollView parent, int totalWidth, int maxRows) {
+        probedRows = 0;
+        for (int r = 0; r < Math.min(row, maxRows); r++) {
+            probedRows = r + 1;
+            for (int c = 0; c < col; c++) {
+                int i = r * col + c;
+                measureCell(parent, i, totalWidth);
+                colWidths[c] = Math.max(colWidths[c], children.get(i).getWidth());
             }
             boolean continueMeasure = false;
             for (int c = 0; c < col; c++) {
@@ -152,31 +402,150 @@ public class TableBlock extends GroupBlock {
                 unconsumed -= (oldColWidth - colWidths[c]);
             }
         }
+    }
 
-        int y = getPaddingTop() + borderWidth;
-        for (int r = 0; r < row; r++) {
-            int x = getPaddingLeft() + borderWidth;
-            for (int c = 0; c < col; c++) {
-                int i = r * col + c;
-                CanvasScrollView.CanvasBlock block = children.get(i);
-                if (block.getWidth() != colWidths[c]) {
-                    block.onMeasure(parent, colWidths[c]);
-                }
-                int left = x + cellPadding;
-                if (getAlignment(c) == ALIGNMENT_RIGHT) {
-                    left += colWidths[c] - block.getWidth();
-                } else if (getAlignment(c) == ALIGNMENT_CENTER) {
-                    left += (colWidths[c] - block.getWidth())/2;
-                }
-                block.setLeft(left);
-                block.setTop(y + cellPadding);
-                rowHeights[r] = Math.max(rowHeights[r], block.getHeight());
-                x += colWidths[c] + borderWidth + cellPadding * 2;
+    private void measureVirtualized(CanvasScrollView parent, int parentWidth) {
+        if (measuredParentWidth != parentWidth || rowMeasured == null || rowMeasured.length < row) {
+            initProps(parent.getContext());
+            for (CanvasScrollView.CanvasBlock b : children) {
+                b.setPadding(0,0,0,0);
             }
-            y += rowHeights[r] + borderWidth + cellPadding * 2;
+            if (rowMeasured == null || rowMeasured.length < row) {
+                rowMeasured = new boolean[row];
+            }
+            Arrays.fill(rowMeasured, false);
+            measuredRowsSum = 0;
+            measuredRowCount = 0;
+            rowEstimate = 0;
+            firstUnmeasuredRow = 0;
+            laidOutRows = 0;
+            prepareCells();
+            computeColumnWidths(parent, parentWidth);
+            measuredParentWidth = parentWidth;
         }
+        measureRows(parent, 0, Math.min(row, ROW_BAND));
+        layoutRows();
         setWidth(parentWidth);
-        setHeight(y + getPaddingBottom());
+    }
+
+    /**
+     * measures the rows of [from, to) which are not measured yet
+     */
+    private void measureRows(CanvasScrollView parent, int from, int to) {
+        for (int r = from; r < to; r++) {
+            if (rowMeasured[r]) {
+                continue;
+            }
+            int h = 0;
+            for (int c = 0; c < col; c++) {
+                measureCell(parent, r * col + c, colWidths[c]);
+                h = Math.max(h, children.get(r * col + c).getHeight());
+            }
+            rowHeights[r] = h;
+            rowMeasured[r] = true;
+            measuredRowsSum += h;
+            measuredRowCount++;
+            //its cells are aligned by their new widths, the rows below move
+            laidOutRows = Math.min(laidOutRows, r);
+        }
+    }
+
+    /**
+     * sets the height of the table, unmeasured rows get the average height of the measured ones.
+     * the rows are positioned by {@link #layOutRowsTo(int)} when they are reached
+     */
+    private void layoutRows() {
+        int estimate = measuredRowCount == 0 ? 0 : (int) (measuredRowsSum / measuredRowCount);
+        if (estimate != rowEstimate) {
+            rowEstimate = estimate;
+            while (firstUnmeasuredRow < row && rowMeasured[firstUnmeasuredRow]) {
+                firstUnmeasuredRow++;
+            }
+            laidOutRows = Math.min(laidOutRows, firstUnmeasuredRow);
+        }
+        long rowsHeight = measuredRowsSum + (long) (row - measuredRowCount) * estimate
+                + (long) row * (borderWidth + cellPadding * 2);
+        setHeight((int) (getPaddingTop() + borderWidth + rowsHeight + getPaddingBottom()));
+    }
+
+    /**
+     * positions the rows from laidOutRows on, until one starts below y
+     */
+    private void layOutRowsTo(int y) {
+        if (rowMeasured == null || rowStarts == null) {
+            return;
+        }
+        if (laidOutRows == 0) {
+            rowStarts[0] = getPaddingTop() + borderWidth;
+        }
+        while (laidOutRows < row && rowStarts[laidOutRows] - borderWidth <= y) {
+            layOutRow(laidOutRows++);
+        }
+    }
+
+    private void layOutRow(int r) {
+        int y = rowStarts[r];
+        if (!rowMeasured[r]) {
+            rowHeights[r] = rowEstimate;
+        }
+        int x = getPaddingLeft() + borderWidth;
+        for (int c = 0; c < col; c++) {
+            colStarts[c] = x;
+            CanvasScrollView.CanvasBlock block = children.get(r * col + c);
+            int left = x + cellPadding;
+            if (getAlignment(c) == ALIGNMENT_RIGHT) {
+                left += colWidths[c] - block.getWidth();
+            } else if (getAlignment(c) == ALIGNMENT_CENTER) {
+                left += (colWidths[c] - block.getWidth())/2;
+            }
+            block.setLeft(left);
+            block.setTop(y + cellPadding);
+            x += colWidths[c] + borderWidth + cellPadding * 2;
+        }
+        colStarts[col] = x;
+        rowStarts[r + 1] = y + rowHeights[r] + borderWidth + cellPadding * 2;
+    }
+
+    /**
+     * measures the unmeasured rows between top and bottom before they are drawn
+     * @return true if the table height changed
+     */
+    private boolean ensureRowsMeasured(CanvasScrollView parent, int top, int bottom) {
+        if (!virtualized || rowMeasured == null || row == 0) {
+            return false;
+        }
+        int r0 = Math.max(0, rowAt(top));
+        int r1 = Math.max(r0, rowAt(bottom));
+        boolean missing = false;
+        for (int r = r0; r <= r1 && !missing; r++) {
+            missing = !rowMeasured[r];
+        }
+        if (!missing) {
+            return false;
+        }
+        int oldHeight = getHeight();
+        measureRows(parent, r0, Math.min(row, Math.max(r1 + 1, r0 + ROW_BAND)));
+        layoutRows();
+        return getHeight() != oldHeight;
+    }
+
+    /**
+     * @return the row whose band (its top border included) contains y, clamped to [0, row-1]
+     */
+    private int rowAt(int y) {
+        if (virtualized) {
+            layOutRowsTo(y);
+        }
+        int lo = 0, hi = (virtualized ? laidOutRows : row) - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (rowStarts[mid] - borderWidth <= y) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
     }
 
     private void initProps(Context context) {
@@ -192,15 +561,94 @@ public class TableBlock extends GroupBlock {
         if (colWidths == null || colWidths.length < col) {
             colWidths = new int[col];
         }
+        if (rowStarts == null || rowStarts.length < row + 1) {
+            rowStarts = new int[row + 1];
+        }
+        if (colStarts == null || colStarts.length < col + 1) {
+            colStarts = new int[col + 1];
+        }
         Arrays.fill(rowHeights, 0);
         Arrays.fill(colWidths, 0);
     }
 
+    /**
+     * the cells of a virtualized table in rows not drawn yet have no layout, or are not in place below
+     * the laid out rows. their selection is drawn once they scroll into view
+     */
+    @Override
+    protected boolean isChildSelectionDrawable(int index) {
+        if (!virtualized) {
+            return true;
+        }
+        int r = col > 0 ? index / col : -1;
+        return rowMeasured != null && r >= 0 && r < row && r < laidOutRows && rowMeasured[r];
+    }
+
+    /**
+     * the cells of a virtualized table below the laid out rows are not in place, they are not searched
+     */
+    @Override
+    protected int countChildrenAbove(int y, boolean inclusive) {
+        if (!virtualized || rowMeasured == null || rowStarts == null || col == 0) {
+            return super.countChildrenAbove(y, inclusive);
+        }
+        layOutRowsTo(y);
+        return countChildrenAbove(y, inclusive, Math.min(children.size(), laidOutRows * col));
+    }
+
+    @Override
+    protected CanvasScrollView.CanvasBlock findChild(int x, int y) {
+        if (virtualized && rowMeasured != null) {
+            layOutRowsTo(y);
+        }
+        int rows = virtualized ? laidOutRows : row;
+        if (rowStarts == null || rows == 0 || col == 0 || children.size() < row * col) {
+            return super.findChild(x, y);
+        }
+        int r = indexOfStart(rowStarts, rows, y);
+        int c = indexOfStart(colStarts, col, x);
+        if (r < 0 || c < 0) {
+            return null;
+        }
+        CanvasScrollView.CanvasBlock b = children.get(r * col + c);
+        if (b.getTop() <= y && b.getBottom() >= y && b.getLeft() <= x && b.getRight() >= x) {
+            return b;
+        }
+        return null;
+    }
+
+    /**
+     * @return the last i in [0, count) with starts[i] <= v, -1 if v is before starts[0] or after the end
+     */
+    private static int indexOfStart(int[] starts, int count, int v) {
+        if (v < starts[0] || v > starts[count]) {
+            return -1;
+        }
+        int lo = 0, hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= v) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
     @Override
     public void onDraw(CanvasScrollView parent, Canvas canvas, int left, int top, int right, int bottom) {
+        if (ensureRowsMeasured(parent, top, bottom) && !relayoutPosted) {
+            //the estimated rows got their real height, lay out the blocks below again after this frame
+            relayoutPosted = parent.post(relayoutRunnable);
+        }
+        if (virtualized) {
+            layOutRowsTo(bottom);
+        }
 
         int x= 0;
         int y = 0;
+        int firstRow = row > 0 && rowStarts != null ? rowAt(Math.max(top, getPaddingTop())) : 0;
 
         left = Math.max(left, getPaddingLeft());
         top = Math.max(top, getPaddingTop());
@@ -209,8 +657,8 @@ public class TableBlock extends GroupBlock {
 
         paint.setStyle(Paint.Style.FILL);
         //draw background
-        y = getPaddingTop();
-        for (int r = 0; r < row; r++) {
+        y = firstRow > 0 ? rowStarts[firstRow] - borderWidth : getPaddingTop();
+        for (int r = firstRow; r < row; r++) {
             if (y > bottom) {
                 break;
             }
@@ -248,8 +696,8 @@ public class TableBlock extends GroupBlock {
         }
 
         //draw ----
-        y = getPaddingTop();
-        for (int r = 0; r <= row; r++) {
+        y = firstRow > 0 ? rowStarts[firstRow] - borderWidth : getPaddingTop();
+        for (int r = firstRow; r <= row; r++) {
             if (y > bottom) {
                 break;
             }
@@ -264,7 +712,24 @@ public class TableBlock extends GroupBlock {
             canvas.drawLine(left, t, right, t, paint);
         }
 
-        super.onDraw(parent, canvas, left, top, right, bottom);
+        //the cells, from the first visible row
+        for (int r = firstRow; r < row && children.size() >= (r + 1) * col; r++) {
+            if (rowStarts != null && rowStarts[r] > bottom) {
+                break;
+            }
+            for (int c = 0; c < col; c++) {
+                CanvasScrollView.CanvasBlock b = children.get(r * col + c);
+                if (b.getBottom() < top || b.getLeft() > right || b.getRight() < left) {
+                    continue;
+                }
+                canvas.save();
+                canvas.translate(b.getLeft(), b.getTop());
+                b.onDraw(parent, canvas,
+                        Math.max(left-b.getLeft(), 0), Math.max(top - b.getTop(), 0),
+                        Math.min(right, b.getRight()) - b.getLeft(), Math.min(bottom, b.getBottom()) - b.getTop());
+                canvas.restore();
+            }
+        }
     }
 
 }
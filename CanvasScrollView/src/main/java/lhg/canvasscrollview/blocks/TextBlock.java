@@ -6,12 +6,15 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.text.DynamicLayout;
 import android.text.Layout;
 import android.text.Spannable;
 import android.text.SpannableString;
+import android.text.SpanWatcher;
 import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.text.style.ClickableSpan;
+import android.text.style.MetricAffectingSpan;
 import android.view.ViewConfiguration;
 
 
@@ -24,12 +27,15 @@ import java.text.BreakIterator;
 
 public class TextBlock extends CanvasScrollView.CanvasBlock implements SelectableAdapter.Selectable {
     protected final Path selectPath = new Path();
-    protected final Spannable text;
-    protected StaticLayout textLayout;
+    protected Spannable text;
+    protected Layout textLayout;
     protected BreakIterator breakIterator;
+    private final CharSequenceCharacterIterator textIterator;
     protected TextPaint textPaint;
     protected static int touchSlop = -1;
-    private final Invalidator invalidator = span -> TextBlock.this.invalidate();
+    private final Invalidator invalidator = span -> onSpanChanged(span);
+    // texts at least this long get a DynamicLayout, a changed span only reflows its paragraphs
+    public static final int INCREMENTAL_LAYOUT_MIN_LENGTH = 2048;
 
     static void initTouchSlop(Context context) {
         if (touchSlop == -1) {
@@ -38,9 +44,19 @@ public class TextBlock extends CanvasScrollView.CanvasBlock implements Selectabl
     }
 
     private boolean isValid = true;
+    // bumped on every text or span change, a prepared layout of an older version is dropped
+    private volatile int layoutVersion = 0;
+    private Layout preparedLayout;
+    private int preparedVersion;
+    // the span a DynamicLayout put on text to follow its changes, removed with the layout
+    private Object layoutWatcher;
+    // the DynamicLayout followed a change of its own text, only the size is taken again
+    private boolean sizeValid = true;
+
     @Override
     public void invalidate() {
         isValid = true;
+        layoutVersion++;
         super.invalidate();
     }
 
@@ -49,32 +65,197 @@ public class TextBlock extends CanvasScrollView.CanvasBlock implements Selectabl
     }
 
     public TextBlock(CharSequence text) {
+        breakIterator = BreakIterator.getWordInstance();
+        textIterator = new CharSequenceCharacterIterator(text);
+        setText(text);
+    }
+
+    /**
+     * rebind a recycled block, the paint, selectPath and break iterator are kept
+     */
+    public void setText(CharSequence text) {
+        if (text == this.text && textLayout instanceof DynamicLayout) {
+            //the layout follows its own text, no need to build it again
+            textIterator.setText(text);
+            breakIterator.setText(textIterator);
+            sizeValid = false;
+            layoutVersion++;
+            return;
+        }
+        //the old text may outlive the block, it must not keep the layout alive
+        removeLayoutWatcher();
         if (text instanceof Spannable) {
             this.text = (Spannable) text;
         } else {
             this.text = new SpannableString(text);
         }
-        breakIterator = BreakIterator.getWordInstance();
-        breakIterator.setText(new CharSequenceCharacterIterator(text));
+        textIterator.setText(text);
+        breakIterator.setText(textIterator);
+        isValid = true;
+        layoutVersion++;
+    }
+
+    public CharSequence getText() {
+        return text;
     }
 
     @Override
     public void onMeasure(CanvasScrollView parent, int parentWidth, boolean horizontalScrollable) {
-        initProps(parent.getContext());
-        int maxLineWidth = getMaxLineWidth(horizontalScrollable ? Integer.MAX_VALUE / 2: parentWidth);
-        if (isValid || textLayout == null || textLayout.getWidth() != maxLineWidth) {
-            textLayout = new StaticLayout(text, textPaint, maxLineWidth, Layout.Alignment.ALIGN_NORMAL, 1, 0, false);
-            float realWidth = 0;
-            for (int i = 0; i < textLayout.getLineCount(); i++) {
-                realWidth = Math.max(realWidth, textLayout.getLineWidth(i));
+        //waits for onPreMeasure if the worker is building the layout right now
+        synchronized (this) {
+            initProps(parent.getContext());
+            int maxLineWidth = getMaxLineWidth(horizontalScrollable ? Integer.MAX_VALUE / 2: parentWidth);
+            if (isValid || textLayout == null || textLayout.getWidth() != maxLineWidth) {
+                removeLayoutWatcher();
+                if (isPreparedLayoutUsable(maxLineWidth)) {
+                    textLayout = preparedLayout;
+                } else {
+                    //a DynamicLayout attaches a watcher to text, only the ui thread does that
+                    Object[] watchers = text.getSpans(0, text.length(), SpanWatcher.class);
+                    textLayout = createLayout(maxLineWidth);
+                    if (textLayout instanceof DynamicLayout) {
+                        layoutWatcher = findNewWatcher(watchers);
+                    }
+                }
+                setSizeFromLayout(maxLineWidth);
+            } else if (!sizeValid) {
+                setSizeFromLayout(maxLineWidth);
             }
-            setHeight(textLayout.getLineTop(textLayout.getLineCount()) + getPaddingTop() + getPaddingBottom());
-            setWidth(Math.min(maxLineWidth, (int)Math.ceil(realWidth)) + getPaddingLeft() + getPaddingRight());
+            preparedLayout = null;
+            isValid = false;
+            sizeValid = true;
         }
-        isValid = false;
         lastSelectPoint.reset();
     }
 
+    @Override
+    public boolean onPreMeasure(Context context, int parentWidth) {
+        synchronized (this) {
+            initProps(context);
+            int maxLineWidth = getMaxLineWidth(parentWidth);
+            if (!isValid && textLayout != null && textLayout.getWidth() == maxLineWidth) {
+                return false;
+            }
+            if (isPreparedLayoutUsable(maxLineWidth)) {
+                return false;
+            }
+            int version = layoutVersion;
+            //never a DynamicLayout here, its watcher would be put on text off the ui thread.
+            //a metric affecting span change builds the DynamicLayout later
+            preparedLayout = createStaticLayout(maxLineWidth);
+            preparedVersion = version;
+            return true;
+        }
+    }
+
+    private void setSizeFromLayout(int maxLineWidth) {
+        float realWidth = 0;
+        for (int i = 0; i < textLayout.getLineCount(); i++) {
+            realWidth = Math.max(realWidth, textLayout.getLineWidth(i));
+        }
+        setHeight(textLayout.getLineTop(textLayout.getLineCount()) + getPaddingTop() + getPaddingBottom());
+        setWidth(Math.min(maxLineWidth, (int)Math.ceil(realWidth)) + getPaddingLeft() + getPaddingRight());
+    }
+
+    /**
+     * a span of the text changed (the Invalidator of {@link #getSpanInvalidator()}).
+     * a span which only changes the appearance redraws its lines, a metric affecting span reflows
+     * its paragraphs in a DynamicLayout, the blocks below are laid out again only if the height changed
+     */
+    protected void onSpanChanged(Object span) {
+        int start = text.getSpanStart(span);
+        int end = text.getSpanEnd(span);
+        int bandTop, bandBottom;
+        synchronized (this) {
+            Layout layout = textLayout;
+            boolean reflow = span instanceof MetricAffectingSpan;
+            if (start < 0 || layout == null || isValid || (reflow && !(layout instanceof DynamicLayout))) {
+                //not a span of this text, not laid out yet, or the whole layout must be built again
+                invalidate();
+                return;
+            }
+            if (reflow) {
+                int oldHeight = layout.getHeight();
+                //setting the span again makes the DynamicLayout reflow the paragraphs it covers
+                text.setSpan(span, start, end, text.getSpanFlags(span));
+                layoutVersion++;
+                if (layout.getHeight() != oldHeight) {
+                    setSizeFromLayout(layout.getWidth());
+                    //lays out the blocks below, onMeasure keeps this layout
+                    super.invalidate();
+                    return;
+                }
+            }
+            bandTop = layout.getLineTop(layout.getLineForOffset(start)) + getPaddingTop();
+            bandBottom = layout.getLineBottom(layout.getLineForOffset(end)) + getPaddingTop();
+        }
+        invalidateDrawing(bandTop, bandBottom);
+    }
+
+    private boolean isPreparedLayoutUsable(int maxLineWidth) {
+        return preparedLayout != null && preparedVersion == layoutVersion && preparedLayout.getWidth() == maxLineWidth;
+    }
+
+    /**
+     * called on the ui thread
+     */
+    protected Layout createLayout(int maxLineWidth) {
+        if (text.length() >= INCREMENTAL_LAYOUT_MIN_LENGTH) {
+            return new DynamicLayout(text, textPaint, maxLineWidth, Layout.Alignment.ALIGN_NORMAL, 1, 0, false);
+        }
+        return createStaticLayout(maxLineWidth);
+    }
+
+    /**
+     * may be called on a worker thread by onPreMeasure
+     */
+    protected Layout createStaticLayout(int maxLineWidth) {
+        return new StaticLayout(text, textPaint, maxLineWidth, Layout.Alignment.ALIGN_NORMAL, 1, 0, false);
+    }
+
+    /**
+     * @return the SpanWatcher on text which is not one of before, the one the new DynamicLayout put
+     */
+    private Object findNewWatcher(Object[] before) {
+        Object[] after = text.getSpans(0, text.length(), SpanWatcher.class);
+        for (Object watcher : after) {
+            boolean old = false;
+            for (Object b : before) {
+                if (b == watcher) {
+                    old = true;
+                    break;
+                }
+            }
+            if (!old) {
+                return watcher;
+            }
+        }
+        return null;
+    }
+
+    private void removeLayoutWatcher() {
+        if (layoutWatcher != null) {
+            text.removeSpan(layoutWatcher);
+            layoutWatcher = null;
+        }
+    }
+
+    /**
+     * a block which is not recycled is dropped after this, the text of the adapter must not keep
+     * the watcher of its DynamicLayout. the layout is built again when the block is measured
+     */
+    @Override
+    public void onDetachedFromParent(CanvasScrollView.CanvasBlockParent parent) {
+        super.onDetachedFromParent(parent);
+        synchronized (this) {
+            if (textLayout instanceof DynamicLayout) {
+                removeLayoutWatcher();
+                textLayout = null;
+                isValid = true;
+            }
+        }
+    }
+
     protected void initProps(Context context) {
         if (textPaint == null) {
             textPaint = new TextPaint();
@@ -90,6 +271,9 @@ public class TextBlock extends CanvasScrollView.CanvasBlock implements Selectabl
 
     @Override
     public void onDraw(CanvasScrollView parent, Canvas canvas, int left, int top, int right, int bottom) {
+        if (textLayout == null) {
+            return;
+        }
         canvas.save();
         canvas.translate(getPaddingLeft(), getPaddingTop());
         canvas.clipRect(left - getPaddingLeft(), top - getPaddingTop(), right -getPaddingLeft(), bottom - getPaddingTop());
@@ -151,6 +335,9 @@ public class TextBlock extends CanvasScrollView.CanvasBlock implements Selectabl
 
     @Override
     public void onDrawSelection(CanvasScrollView parent, Canvas canvas, Paint selectPaint, int begin, int end) {
+        if (textLayout == null) {
+            return;
+        }
         selectPath.reset();
         textLayout.getSelectionPath(begin, end, selectPath);
         canvas.save();
@@ -178,9 +365,10 @@ public class TextBlock extends CanvasScrollView.CanvasBlock implements Selectabl
         return (int) (spValue * fontScale + 0.5f);
     }
 
+    private final SelectableAdapter.SelectPoint clickPoint = new SelectableAdapter.SelectPoint();
     @Override
     public void onClicked(CanvasScrollView parent, int x, int y) {
-        SelectableAdapter.SelectPoint point = new SelectableAdapter.SelectPoint();
+        SelectableAdapter.SelectPoint point = clickPoint;
         point.offset = -1;
         getSelectionIndex(parent, x, y, point);
         if (point.offset != -1) {
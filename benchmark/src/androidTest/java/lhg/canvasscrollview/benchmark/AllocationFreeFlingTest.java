@@ -0,0 +1,119 @@
+package lhg.canvasscrollview.benchmark;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import lhg.canvasscrollview.CanvasScrollView;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * drags a CanvasScrollView over a 100k items adapter and lifts the finger, so the view flings itself
+ * as it does for a user, for 10 seconds, drawing every frame, and checks the ui thread allocated
+ * nothing once the recycled blocks and pools are warm. the view is attached to a window, the fling
+ * frames are run by the choreographer and the callbacks come from the message pool. a finished
+ * fling is started again by the same gesture. the frames of the window are counted too.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AllocationFreeFlingTest {
+    private static final int ITEM_COUNT = 100_000;
+    private static final long FLING_MS = 10_000;
+    private static final long WARM_UP_MS = 1_000;
+    private static final long FRAME_MS = 16;
+    private static final int DRAG_MOVES = 20;
+    private static final int DRAG_STEP = 40;
+
+    private Instrumentation instrumentation;
+    private Activity activity;
+    private CanvasScrollView view;
+    private Canvas canvas;
+    // one gesture, obtained up front and sent again for every fling
+    private MotionEvent[] drag;
+    private final long[] allocated = new long[1];
+    // run on the ui thread every frame, a field so posting it allocates nothing there
+    private final Runnable frame = () -> {
+        if (view.getScrollState() == CanvasScrollView.SCROLL_STATE_IDLE) {
+            for (MotionEvent ev : drag) {
+                view.onTouchEvent(ev);
+            }
+        }
+        view.draw(canvas);
+    };
+
+    @Before
+    public void setUp() {
+        instrumentation = InstrumentationRegistry.getInstrumentation();
+        Intent intent = new Intent(Intent.ACTION_MAIN)
+                .setClassName(instrumentation.getTargetContext(), Activity.class.getName())
+                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        activity = instrumentation.startActivitySync(intent);
+        instrumentation.runOnMainSync(() -> {
+            view = Scenarios.newScrollView(activity, new SyntheticAdapter(ITEM_COUNT, 0));
+            activity.setContentView(view);
+            canvas = new Canvas(Bitmap.createBitmap(Scenarios.WIDTH, Scenarios.HEIGHT, Bitmap.Config.ARGB_8888));
+        });
+        instrumentation.waitForIdleSync();
+
+        long downTime = SystemClock.uptimeMillis();
+        float x = Scenarios.WIDTH / 2f;
+        float y = Scenarios.HEIGHT * 3 / 4f;
+        drag = new MotionEvent[DRAG_MOVES + 2];
+        drag[0] = MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_DOWN, x, y, 0);
+        for (int i = 1; i <= DRAG_MOVES; i++) {
+            drag[i] = MotionEvent.obtain(downTime, downTime + i * FRAME_MS, MotionEvent.ACTION_MOVE, x, y - i * DRAG_STEP, 0);
+        }
+        // lifted while moving, the velocity tracker starts a real fling
+        drag[DRAG_MOVES + 1] = MotionEvent.obtain(downTime, downTime + (DRAG_MOVES + 1) * FRAME_MS,
+                MotionEvent.ACTION_UP, x, y - (DRAG_MOVES + 1) * DRAG_STEP, 0);
+    }
+
+    @After
+    public void tearDown() {
+        for (MotionEvent ev : drag) {
+            ev.recycle();
+        }
+        activity.finish();
+    }
+
+    @Test
+    @SuppressWarnings("deprecation") // Debug alloc counting is the only per thread allocation counter
+    public void dragAndFlingDoNotAllocate() {
+        // fills the recycled block pool, the velocity tracker pool and the scroll bar cache
+        flingFor(WARM_UP_MS);
+        instrumentation.runOnMainSync(() -> {
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+        });
+        flingFor(FLING_MS);
+        instrumentation.runOnMainSync(() -> {
+            Debug.stopAllocCounting();
+            allocated[0] = Debug.getThreadAllocCount();
+        });
+        assertEquals("objects allocated on the ui thread", 0, allocated[0]);
+    }
+
+    /**
+     * the ui thread flings between the frames, the test only draws and starts the next fling
+     */
+    private void flingFor(long durationMs) {
+        long end = SystemClock.uptimeMillis() + durationMs;
+        while (SystemClock.uptimeMillis() < end) {
+            instrumentation.runOnMainSync(frame);
+            SystemClock.sleep(FRAME_MS);
+        }
+    }
+}
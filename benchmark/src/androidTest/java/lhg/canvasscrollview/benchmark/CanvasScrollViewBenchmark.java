@@ -0,0 +1,53 @@
+package lhg.canvasscrollview.benchmark;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.List;
+
+/**
+ * runs every {@link Scenarios} entry on a device:
+ * ./gradlew :benchmark:connectedReleaseAndroidTest, the results are in
+ * benchmark/build/outputs/connected_android_test_additional_output
+ */
+@RunWith(Parameterized.class)
+public class CanvasScrollViewBenchmark {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Scenario> scenarios() {
+        return Scenarios.all();
+    }
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private final Scenario scenario;
+
+    public CanvasScrollViewBenchmark(Scenario scenario) {
+        this.scenario = scenario;
+    }
+
+    @Test
+    public void run() {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        //the views must be created and used on the ui thread
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            scenario.setUp(context);
+            BenchmarkState state = benchmarkRule.getState();
+            while (state.keepRunning()) {
+                scenario.runIteration();
+                state.pauseTiming();
+                scenario.afterIteration();
+                state.resumeTiming();
+            }
+        });
+    }
+}
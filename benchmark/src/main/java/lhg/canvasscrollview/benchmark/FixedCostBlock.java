@@ -0,0 +1,84 @@
+package lhg.canvasscrollview.benchmark;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import lhg.canvasscrollview.CanvasScrollView;
+import lhg.canvasscrollview.SelectableAdapter;
+
+/**
+ * a block of a given size whose measure and draw cost a fixed amount of work, so the benchmarks
+ * measure the scroll view and not text layout. selectable with one offset per pixel row.
+ */
+public class FixedCostBlock extends CanvasScrollView.CanvasBlock implements SelectableAdapter.Selectable {
+    private static final Paint paint = new Paint();
+    private int contentWidth;
+    private int contentHeight;
+    private int workUnits;
+    // keeps the work from being optimized away
+    private int sink;
+
+    public FixedCostBlock(int contentWidth, int contentHeight, int workUnits) {
+        bind(contentWidth, contentHeight, workUnits);
+    }
+
+    public void bind(int contentWidth, int contentHeight, int workUnits) {
+        this.contentWidth = contentWidth;
+        this.contentHeight = contentHeight;
+        this.workUnits = workUnits;
+    }
+
+    private void work() {
+        int x = sink;
+        for (int i = 0; i < workUnits; i++) {
+            x = x * 31 + i;
+        }
+        sink = x;
+    }
+
+    public int getSink() {
+        return sink;
+    }
+
+    @Override
+    public void onMeasure(CanvasScrollView parent, int parentWidth, boolean horizontalScrollable) {
+        work();
+        setWidth(Math.min(parentWidth, contentWidth + getPaddingLeft() + getPaddingRight()));
+        setHeight(contentHeight + getPaddingTop() + getPaddingBottom());
+    }
+
+    @Override
+    public void onDraw(CanvasScrollView parent, Canvas canvas, int left, int top, int right, int bottom) {
+        work();
+        canvas.drawRect(left, top, right, bottom, paint);
+    }
+
+    @Override
+    public void getSelectionRange(CanvasScrollView parent, int x, int y, SelectableAdapter.SelectPoint begin, SelectableAdapter.SelectPoint end) {
+        getSelectionIndex(parent, x, y, begin);
+        getSelectionIndex(parent, x, y + 1, end);
+    }
+
+    @Override
+    public void getSelectionIndex(CanvasScrollView parent, int x, int y, SelectableAdapter.SelectPoint point) {
+        point.offset = Math.max(0, Math.min(contentHeight, y));
+        point.x = x;
+        point.y = point.offset + 1;
+        point.h = 1;
+    }
+
+    @Override
+    public int getSelectableSize() {
+        return contentHeight;
+    }
+
+    @Override
+    public void onDrawSelection(CanvasScrollView parent, Canvas canvas, Paint selectPaint, int begin, int end) {
+        canvas.drawRect(0, begin, getWidth(), end, selectPaint);
+    }
+
+    @Override
+    public String getSelectionText(int begin, int end) {
+        return "";
+    }
+}
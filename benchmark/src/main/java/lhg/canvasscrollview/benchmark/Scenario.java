@@ -0,0 +1,40 @@
+package lhg.canvasscrollview.benchmark;
+
+import android.content.Context;
+
+/**
+ * one benchmark, run the same way by the device benchmarks (androidTest) and the jvm ones (test),
+ * so their reports have the same names and can be compared
+ */
+public abstract class Scenario {
+    private final String name;
+
+    protected Scenario(String name) {
+        this.name = name;
+    }
+
+    public final String getName() {
+        return name;
+    }
+
+    /**
+     * builds the views and blocks, not measured
+     */
+    public abstract void setUp(Context context);
+
+    /**
+     * the measured work
+     */
+    public abstract void runIteration();
+
+    /**
+     * called after each iteration with the timing paused, e.g. to scroll back to the top
+     */
+    public void afterIteration() {
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,262 @@
+package lhg.canvasscrollview.benchmark;
+
+import android.content.Context;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lhg.canvasscrollview.CanvasScrollView;
+import lhg.canvasscrollview.SelectableAdapter;
+import lhg.canvasscrollview.blocks.TableBlock;
+import lhg.canvasscrollview.blocks.VerticalGroupBlock;
+
+/**
+ * the hot paths: filling the window, scrolling, every kind of adapter notification replayed by
+ * ensureLayouterValid, selection offsets of a GroupBlock and TableBlock.onMeasure.
+ * the views are laid out on a fixed phone sized screen without a measure scheduler or prefetch,
+ * so only the synchronous work of the ui thread is measured.
+ */
+public final class Scenarios {
+    public static final int WIDTH = 1080;
+    public static final int HEIGHT = 1920;
+    public static final int[] ITEM_COUNTS = {10_000, 100_000, 1_000_000};
+    // items of the adapter notification scenarios
+    private static final int HANDLER_ITEM_COUNT = 100_000;
+    private static final int WORK_UNITS = 200;
+    private static final int GROUP_CHILDREN = 2000;
+    private static final int TABLE_ROWS = 500;
+    private static final int TABLE_COLS = 4;
+    private static final int VIRTUALIZED_TABLE_ROWS = 5000;
+
+    private Scenarios() {
+    }
+
+    public static List<Scenario> all() {
+        List<Scenario> list = new ArrayList<>();
+        for (int count : ITEM_COUNTS) {
+            list.add(fillWindow(count));
+            list.add(scroll(count));
+        }
+        list.add(rangeChanged());
+        list.add(insertRemove());
+        list.add(moved());
+        list.add(dataSetChanged());
+        list.add(groupSelectionIndex());
+        list.add(groupSelectableOffsets());
+        list.add(tableMeasure("table_measure_sameWidth", TABLE_ROWS, false, false, false));
+        list.add(tableMeasure("table_measure_rotate", TABLE_ROWS, false, true, false));
+        list.add(tableMeasure("table_measure_invalidated", TABLE_ROWS, false, false, true));
+        list.add(tableMeasure("table_measure_virtualized", VIRTUALIZED_TABLE_ROWS, true, false, true));
+        return list;
+    }
+
+    public static CanvasScrollView newScrollView(Context context, CanvasScrollView.Adapter<?> adapter) {
+        CanvasScrollView view = new CanvasScrollView(context);
+        view.setMeasureScheduler(null);
+        view.setItemPrefetchEnabled(false);
+        view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, WIDTH, HEIGHT);
+        view.setAdapter(adapter);
+        flush(view);
+        return view;
+    }
+
+    /**
+     * replays the queued adapter notifications like the next frame would
+     */
+    public static void flush(CanvasScrollView view) {
+        view.scrollBy(0, 0);
+    }
+
+    private static int firstPosition(CanvasScrollView view) {
+        CanvasScrollView.CanvasBlock block = view.getBlockAtY(0);
+        return block == null ? 0 : block.getPosition();
+    }
+
+    private abstract static class ScrollViewScenario extends Scenario {
+        final int itemCount;
+        SyntheticAdapter adapter;
+        CanvasScrollView view;
+
+        ScrollViewScenario(String name, int itemCount) {
+            super(name);
+            this.itemCount = itemCount;
+        }
+
+        @Override
+        public void setUp(Context context) {
+            adapter = new SyntheticAdapter(itemCount, WORK_UNITS);
+            view = newScrollView(context, adapter);
+            // away from the edges
+            view.scrollToPosition(itemCount / 2);
+        }
+    }
+
+    static Scenario fillWindow(int itemCount) {
+        return new ScrollViewScenario("fillWindow_" + itemCount, itemCount) {
+            final int step = itemCount / 97 + 1;
+            int position = 0;
+
+            @Override
+            public void runIteration() {
+                position = (position + step) % itemCount;
+                view.scrollToPosition(position);
+            }
+        };
+    }
+
+    static Scenario scroll(int itemCount) {
+        return new ScrollViewScenario("scrollBy_" + itemCount, itemCount) {
+            final int dy = HEIGHT / 3;
+            long scrolled = 0;
+
+            @Override
+            public void setUp(Context context) {
+                super.setUp(context);
+                view.scrollToPosition(0);
+            }
+
+            @Override
+            public void runIteration() {
+                view.scrollBy(0, dy);
+            }
+
+            @Override
+            public void afterIteration() {
+                scrolled += dy;
+                // far from the end of the smallest adapter
+                if (scrolled > HEIGHT * 200L) {
+                    scrolled = 0;
+                    view.scrollToPosition(0);
+                }
+            }
+        };
+    }
+
+    static Scenario rangeChanged() {
+        return new ScrollViewScenario("handler_rangeChanged", HANDLER_ITEM_COUNT) {
+            @Override
+            public void runIteration() {
+                adapter.notifyItemRangeChanged(firstPosition(view), 10);
+                flush(view);
+            }
+        };
+    }
+
+    static Scenario insertRemove() {
+        return new ScrollViewScenario("handler_rangeInsertedRemoved", HANDLER_ITEM_COUNT) {
+            @Override
+            public void runIteration() {
+                int position = firstPosition(view) + 2;
+                adapter.insert(position, 5);
+                flush(view);
+                adapter.remove(position, 5);
+                flush(view);
+            }
+        };
+    }
+
+    static Scenario moved() {
+        return new ScrollViewScenario("handler_moved", HANDLER_ITEM_COUNT) {
+            @Override
+            public void runIteration() {
+                int position = firstPosition(view);
+                adapter.notifyItemMoved(position + 1, position + 5);
+                flush(view);
+                adapter.notifyItemMoved(position + 5, position + 1);
+                flush(view);
+            }
+        };
+    }
+
+    static Scenario dataSetChanged() {
+        return new ScrollViewScenario("handler_dataSetChanged", HANDLER_ITEM_COUNT) {
+            @Override
+            public void runIteration() {
+                adapter.notifyDataSetChanged();
+                flush(view);
+            }
+        };
+    }
+
+    private abstract static class GroupScenario extends Scenario {
+        CanvasScrollView view;
+        VerticalGroupBlock group;
+
+        GroupScenario(String name) {
+            super(name);
+        }
+
+        @Override
+        public void setUp(Context context) {
+            view = newScrollView(context, new SyntheticAdapter(0, 0));
+            group = new VerticalGroupBlock();
+            for (int i = 0; i < GROUP_CHILDREN; i++) {
+                group.addBlock(new FixedCostBlock(WIDTH, SyntheticAdapter.heightOf(i), 0));
+            }
+            group.onMeasure(view, WIDTH);
+        }
+    }
+
+    static Scenario groupSelectionIndex() {
+        return new GroupScenario("group_selectionIndex") {
+            final SelectableAdapter.SelectPoint point = new SelectableAdapter.SelectPoint();
+            int y = 0;
+
+            @Override
+            public void runIteration() {
+                y = (y + 7919) % group.getHeight();
+                group.getSelectionIndex(view, WIDTH / 2, y, point);
+            }
+        };
+    }
+
+    static Scenario groupSelectableOffsets() {
+        return new GroupScenario("group_selectableOffsets") {
+            int size;
+
+            @Override
+            public void runIteration() {
+                // drops the offsets, getSelectableSize builds them again
+                group.invalidate();
+                size += group.getSelectableSize();
+            }
+        };
+    }
+
+    /**
+     * @param rotate      measure with two widths in turn
+     * @param invalidated drop the cached measurements before every measure
+     */
+    static Scenario tableMeasure(String name, int rows, boolean virtualized, boolean rotate, boolean invalidated) {
+        return new Scenario(name) {
+            CanvasScrollView view;
+            TableBlock table;
+            boolean landscape;
+
+            @Override
+            public void setUp(Context context) {
+                view = newScrollView(context, new SyntheticAdapter(0, 0));
+                table = new TableBlock();
+                table.setRow(rows);
+                table.setCol(TABLE_COLS);
+                table.setVirtualized(virtualized);
+                for (int i = 0; i < rows * TABLE_COLS; i++) {
+                    table.addBlock(new FixedCostBlock(80 + (i % 7) * 40, SyntheticAdapter.heightOf(i), WORK_UNITS));
+                }
+                table.onMeasure(view, WIDTH);
+            }
+
+            @Override
+            public void runIteration() {
+                if (invalidated) {
+                    table.invalidate();
+                }
+                landscape = rotate && !landscape;
+                table.onMeasure(view, landscape ? HEIGHT : WIDTH);
+            }
+        };
+    }
+}
@@ -0,0 +1,52 @@
+package lhg.canvasscrollview.benchmark;
+
+import lhg.canvasscrollview.CanvasScrollView;
+
+/**
+ * itemCount recyclable FixedCostBlocks whose heights only depend on the position,
+ * so no data is stored even for millions of items
+ */
+public class SyntheticAdapter extends CanvasScrollView.Adapter<FixedCostBlock> {
+    private static final int[] HEIGHTS = {48, 96, 64, 160, 72};
+    private int itemCount;
+    private final int workUnits;
+
+    public SyntheticAdapter(int itemCount, int workUnits) {
+        this.itemCount = itemCount;
+        this.workUnits = workUnits;
+    }
+
+    public static int heightOf(int position) {
+        return HEIGHTS[position % HEIGHTS.length];
+    }
+
+    public void insert(int position, int count) {
+        itemCount += count;
+        notifyItemRangeInserted(position, count);
+    }
+
+    public void remove(int position, int count) {
+        itemCount -= count;
+        notifyItemRangeRemoved(position, count);
+    }
+
+    @Override
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    @Override
+    public int getItemType(int position) {
+        return 0;
+    }
+
+    @Override
+    public FixedCostBlock getItem(CanvasScrollView parent, int position) {
+        return new FixedCostBlock(parent.getWidth(), heightOf(position), workUnits);
+    }
+
+    @Override
+    public void bindBlock(CanvasScrollView parent, FixedCostBlock block, int position) {
+        block.bind(parent.getWidth(), heightOf(position), workUnits);
+    }
+}
@@ -0,0 +1,133 @@
+package lhg.canvasscrollview.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * a small jmh-like harness for the Robolectric runs: warms a scenario up, then times batches of
+ * iterations and reports the per iteration time of every batch. the report has the layout of the
+ * androidx.benchmark json (benchmarks[].metrics.timeNs), so both can be compared by the same tools.
+ */
+final class JvmBenchmarkHarness {
+    private static final long WARMUP_NS = 500_000_000L;
+    private static final long BATCH_NS = 20_000_000L;
+    private static final int BATCHES = 30;
+
+    static final class Result {
+        final String name;
+        final long[] runs;
+
+        Result(String name, long[] runs) {
+            this.name = name;
+            this.runs = runs;
+        }
+
+        long percentile(int p) {
+            long[] sorted = runs.clone();
+            Arrays.sort(sorted);
+            return sorted[Math.min(sorted.length - 1, (int) ((long) p * sorted.length / 100))];
+        }
+    }
+
+    private final List<Result> results = new ArrayList<>();
+
+    Result run(Scenario scenario) {
+        // warm up the jit and find how many iterations fill a batch
+        int iterations = 0;
+        long timed = 0;
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < WARMUP_NS) {
+            long t = System.nanoTime();
+            scenario.runIteration();
+            timed += System.nanoTime() - t;
+            scenario.afterIteration();
+            iterations++;
+        }
+        int batchIterations = (int) Math.max(1, Math.min(Integer.MAX_VALUE, BATCH_NS * iterations / Math.max(1, timed)));
+
+        long[] runs = new long[BATCHES];
+        for (int b = 0; b < BATCHES; b++) {
+            long batch = 0;
+            for (int i = 0; i < batchIterations; i++) {
+                long t = System.nanoTime();
+                scenario.runIteration();
+                batch += System.nanoTime() - t;
+                scenario.afterIteration();
+            }
+            runs[b] = batch / batchIterations;
+        }
+        Result result = new Result(scenario.getName(), runs);
+        results.add(result);
+        return result;
+    }
+
+    /**
+     * @return one line for every scenario whose median is slower than its baseline median by more
+     * than tolerance (0.5 is 50%), empty if none is. scenarios missing from baseline are not checked
+     */
+    List<String> findRegressions(File baseline, double tolerance) throws IOException {
+        List<String> regressions = new ArrayList<>();
+        if (!baseline.isFile()) {
+            return regressions;
+        }
+        Properties medians = new Properties();
+        try (InputStream in = new FileInputStream(baseline)) {
+            medians.load(in);
+        }
+        for (Result r : results) {
+            String value = medians.getProperty(r.name);
+            if (value == null) {
+                continue;
+            }
+            long expected = Long.parseLong(value.trim());
+            long median = r.percentile(50);
+            if (median > expected * (1 + tolerance)) {
+                regressions.add(String.format(Locale.US, "%s: median %,d ns, baseline %,d ns (+%.0f%%)",
+                        r.name, median, expected, (median - expected) * 100.0 / expected));
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * writes the medians of this run as the baseline
+     */
+    void writeBaseline(File file) throws IOException {
+        Properties medians = new Properties();
+        for (Result r : results) {
+            medians.setProperty(r.name, Long.toString(r.percentile(50)));
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            medians.store(out, "median ns per iteration of JvmBenchmarkTest, record it again on the machine that checks it");
+        }
+    }
+
+    void writeReport(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        try (Writer w = new FileWriter(file)) {
+            w.write("{\n  \"context\": {\"runtime\": \"robolectric\", \"java\": \"" + System.getProperty("java.version") + "\"},\n");
+            w.write("  \"benchmarks\": [\n");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                long[] sorted = r.runs.clone();
+                Arrays.sort(sorted);
+                w.write(String.format(Locale.US,
+                        "    {\"name\": \"%s\", \"className\": \"%s\", \"metrics\": {\"timeNs\": {\"minimum\": %d, \"maximum\": %d, \"median\": %d, \"p90\": %d, \"runs\": %s}}}%s\n",
+                        r.name, CanvasScrollViewBenchmark.class.getName(), sorted[0], sorted[sorted.length - 1],
+                        r.percentile(50), r.percentile(90), Arrays.toString(r.runs), i == results.size() - 1 ? "" : ","));
+            }
+            w.write("  ]\n}\n");
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package lhg.canvasscrollview.benchmark;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * runs every {@link Scenarios} entry on the jvm with Robolectric, no device needed:
+ * ./gradlew :benchmark:testReleaseUnitTest, the report is build/benchmark-results/jvm-benchmarkData.json.
+ * the absolute numbers are not device numbers, compare runs of the same machine.
+ *
+ * no baseline is checked in, so as shipped this is a report only harness and never fails.
+ * to make it a regression check, record jvm-benchmark-baseline.properties with
+ * -PrecordBenchmarkBaseline=true on the machine which runs the check and commit it, then a scenario
+ * slower than its baseline median by more than the tolerance (-PbenchmarkTolerance, 0.5 by default)
+ * fails the test.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class JvmBenchmarkTest {
+    private static final JvmBenchmarkHarness harness = new JvmBenchmarkHarness();
+
+    @Test
+    public void runAll() throws IOException {
+        Context context = ApplicationProvider.getApplicationContext();
+        for (Scenario scenario : Scenarios.all()) {
+            scenario.setUp(context);
+            JvmBenchmarkHarness.Result result = harness.run(scenario);
+            System.out.println(String.format("%-36s median %,12d ns  p90 %,12d ns",
+                    result.name, result.percentile(50), result.percentile(90)));
+        }
+        File baseline = new File(System.getProperty("benchmark.baseline", "jvm-benchmark-baseline.properties"));
+        if (Boolean.getBoolean("benchmark.recordBaseline")) {
+            harness.writeBaseline(baseline);
+            return;
+        }
+        if (!baseline.isFile()) {
+            System.out.println("no " + baseline.getName() + ", the results are reported but not checked");
+            return;
+        }
+        double tolerance = Double.parseDouble(System.getProperty("benchmark.tolerance", "0.5"));
+        List<String> regressions = harness.findRegressions(baseline, tolerance);
+        assertTrue("slower than " + baseline.getName() + ":\n" + String.join("\n", regressions), regressions.isEmpty());
+    }
+
+    @AfterClass
+    public static void writeReport() throws IOException {
+        String dir = System.getProperty("benchmark.outputDir", "build/benchmark-results");
+        harness.writeReport(new File(dir, "jvm-benchmarkData.json"));
+    }
+}